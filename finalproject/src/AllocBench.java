@@ -0,0 +1,94 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * AllocBench measures the Java heap allocated by each SysLib.read and SysLib.write of a few bytes
+ * within a block that is already cached, i.e. the file system's steady-state hot path.  It needs
+ * HotSpot's per-thread allocation counter (com.sun.management.ThreadMXBean).
+ *
+ * Usage: l AllocBench [calls]     (default 100000 of each; the first tenth are a warm-up)
+ */
+public class AllocBench extends Thread {
+  private final static int RECORD = 16;                 // bytes per read or write
+  private final static int FILE_SIZE = 500;             // stays within one block
+  private final static int PER_PASS = FILE_SIZE / RECORD;
+
+  private int calls = 100000;
+  private com.sun.management.ThreadMXBean threads;
+
+  public AllocBench( ) {
+  }
+
+  public AllocBench( String[] args ) {
+    if ( args.length > 0 )
+      calls = Integer.parseInt( args[0] );
+  }
+
+  public void run( ) {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean( );
+    if ( !( bean instanceof com.sun.management.ThreadMXBean ) ) {
+      SysLib.cout( "AllocBench: per-thread allocation counts are not available\n" );
+      SysLib.exit( );
+      return;
+    }
+    threads = ( com.sun.management.ThreadMXBean )bean;
+    threads.setThreadAllocatedMemoryEnabled( true );
+
+    int fd = SysLib.open( "allocbench", "w+" );
+    byte[] contents = new byte[FILE_SIZE];
+    for ( int i = 0; i < contents.length; i++ )
+      contents[i] = ( byte )i;
+    if ( fd == -1 || SysLib.write( fd, contents ) != FILE_SIZE ) {
+      SysLib.cout( "AllocBench: cannot create allocbench\n" );
+      SysLib.exit( );
+      return;
+    }
+
+    byte[] record = new byte[RECORD];
+    measure( fd, record, false, calls / 10 );           // warm up: load classes, fill the cache
+    measure( fd, record, true, calls / 10 );
+    double perRead = measure( fd, record, false, calls );
+    double perWrite = measure( fd, record, true, calls );
+
+    SysLib.close( fd );
+    SysLib.delete( "allocbench" );
+    SysLib.cout( String.format( "AllocBench: %d-byte read of a cached block: %.2f bytes allocated per call\n",
+                                RECORD, perRead ) );
+    SysLib.cout( String.format( "AllocBench: %d-byte write to a cached block: %.2f bytes allocated per call\n",
+                                RECORD, perWrite ) );
+    SysLib.exit( );
+  }
+
+  // Average bytes allocated per read (or write) over about n calls; seeks are not counted
+  private double measure( int fd, byte[] record, boolean write, int n ) {
+    long overhead = overhead( );
+    long allocated = 0;
+    int done = 0;
+    while ( done < n ) {
+      SysLib.seek( fd, 0, 0 );
+      long before = allocatedBytes( );
+      for ( int i = 0; i < PER_PASS; i++ ) {
+        if ( write )
+          SysLib.write( fd, record );
+        else
+          SysLib.read( fd, record );
+      }
+      allocated += Math.max( 0, allocatedBytes( ) - before - overhead );
+      done += PER_PASS;
+    }
+    return ( double )allocated / done;
+  }
+
+  private long allocatedBytes( ) {
+    return threads.getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+  }
+
+  // What reading the counter itself allocates
+  private long overhead( ) {
+    long least = Long.MAX_VALUE;
+    for ( int i = 0; i < 100; i++ ) {
+      long before = allocatedBytes( );
+      least = Math.min( least, allocatedBytes( ) - before );
+    }
+    return least;
+  }
+}
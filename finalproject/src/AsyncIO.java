@@ -0,0 +1,88 @@
+/**
+ * AsyncIO exercises the asynchronous raw disk calls.  It queues a batch of block writes, retires
+ * half of the tokens by polling and half by waiting, reads the blocks back the same way, and
+ * checks the data, that every token was positive and distinct, and that a retired token is
+ * refused.  It writes the last blocks of the disk, so run it on a scratch DISK.
+ *
+ * Usage: l AsyncIO [blocks]     (default 8)
+ */
+public class AsyncIO extends Thread {
+  private int blocks = 8;
+
+  public AsyncIO( ) {
+  }
+
+  public AsyncIO( String[] args ) {
+    if ( args.length > 0 )
+      blocks = Integer.parseInt( args[0] );
+  }
+
+  public void run( ) {
+    SysLib.format( 48 );
+    int first = SysLib.diskBlocks( ) - blocks;
+    byte[][] data = new byte[blocks][512];
+    byte[][] back = new byte[blocks][512];
+    for ( int i = 0; i < blocks; i++ )
+      for ( int j = 0; j < 512; j++ )
+        data[i][j] = ( byte )( i * 31 + j );
+
+    int[] tokens = new int[blocks];
+    for ( int i = 0; i < blocks; i++ )
+      tokens[i] = SysLib.rawwriteAsync( first + i, data[i] );
+    String problem = checkTokens( tokens );
+    if ( problem == null )
+      problem = retire( tokens, "write" );
+
+    if ( problem == null ) {
+      for ( int i = 0; i < blocks; i++ )
+        tokens[i] = SysLib.rawreadAsync( first + i, back[i] );
+      problem = checkTokens( tokens );
+    }
+    if ( problem == null )
+      problem = retire( tokens, "read" );
+
+    for ( int i = 0; problem == null && i < blocks; i++ )
+      if ( !java.util.Arrays.equals( data[i], back[i] ) )
+        problem = "block " + ( first + i ) + " read back differently";
+
+    if ( problem == null )
+      SysLib.cout( "AsyncIO: " + blocks + " blocks written and read back...Correct\n" );
+    else
+      SysLib.cout( "AsyncIO: " + problem + "...wrong\n" );
+    SysLib.exit( );
+  }
+
+  // Every token must be positive, so it can't be mistaken for OK or ERROR, and distinct
+  private String checkTokens( int[] tokens ) {
+    for ( int i = 0; i < tokens.length; i++ ) {
+      if ( tokens[i] <= 0 )
+        return "token " + tokens[i] + " is not positive";
+      for ( int j = 0; j < i; j++ )
+        if ( tokens[j] == tokens[i] )
+          return "token " + tokens[i] + " was handed out twice";
+    }
+    return null;
+  }
+
+  // Polls the even tokens until they report completion and waits on the odd ones; after that
+  // each token is retired, so both calls must refuse it
+  private String retire( int[] tokens, String what ) {
+    for ( int i = 0; i < tokens.length; i++ ) {
+      int result;
+      if ( i % 2 == 0 ) {
+        while ( ( result = SysLib.rawpoll( tokens[i] ) ) == 0 )
+          SysLib.sleep( 1 );
+        if ( result != 1 )
+          return what + " " + i + " polled as " + result;
+      } else {
+        result = SysLib.rawwait( tokens[i] );
+        if ( result != Kernel.OK )
+          return what + " " + i + " waited as " + result;
+      }
+      if ( SysLib.rawpoll( tokens[i] ) != Kernel.ERROR
+           || SysLib.rawwait( tokens[i] ) != Kernel.ERROR )
+        return what + " token " + tokens[i] + " was not retired";
+    }
+    return null;
+  }
+}
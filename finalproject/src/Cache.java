@@ -0,0 +1,1626 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @author  Martin L. Metke
+ * @date    2017/07/30
+ *
+ * The Cache class provides a cached disk access interface for on-demand paging.  Cached blocks are
+ * found through a block-to-page hash index and free pages are kept on a stack, so hits and fills do
+ * not scan the cache table.
+ *
+ * The cache is safe for concurrent threads without one lock around everything:
+ *  - the block index is split into STRIPES independent tables, each guarded by its own monitor;
+ *  - each page has its own monitor and a busy flag, set while the page is being filled from disk or
+ *    written back; threads wanting that page wait on it, so concurrent misses on one block cost a
+ *    single disk read;
+ *  - the free stack and the replacement policy share one replacement lock, held only while choosing
+ *    a page or telling the policy about one.
+ * No lock is held across disk I/O, so a slow miss delays only threads that want the same block.
+ *
+ * The replacement lock is always taken before a stripe or page lock, never after.
+ *
+ * An optional background cleaner (startCleaner) writes dirty pages back before they are chosen as
+ * victims, so that a miss usually finds a clean victim and pays only for its own read.  It wakes
+ * when the share of dirty pages passes a high watermark and then cleans unreferenced dirty pages
+ * until half that share is left, and it periodically writes back any page dirty for longer than
+ * a maximum age.
+ *
+ * Writes of part of a block (write with an offset and length) are merged into the cached page and
+ * leave it dirty, so a run of small appends to one block costs memory copies and a single write-back
+ * on eviction or sync rather than a disk read and write each.
+ *
+ * A block can also be read in place: acquire pins its page, view lends a read-only ByteBuffer over
+ * part of the page, and release unpins it.  A pinned page is never evicted and writes to its block
+ * wait until it is unpinned, so the view stays stable without copying the block anywhere.
+ *
+ * Page data lives either in one byte[] per page or, for large caches, in a single direct ByteBuffer
+ * slab outside the Java heap (see the four-argument constructor), so the cache's heap footprint does
+ * not grow with its size.  Pages are allocated once and reset in place by invalidate and flush.
+ *
+ * Hits, misses, evictions and write-backs are always counted, split by block class (superblock,
+ * inode region, data); getStats returns a CacheStats snapshot.  Kernel BOOT and FORMAT tell the
+ * cache where the data region starts (setDataStart).
+ *
+ * Victims are chosen by a ReplacementPolicy (setPolicy); the default is the enhanced second-chance
+ * scan.
+ *
+ * Optional read-ahead (startReadAhead) watches for sequential streams: a read that starts where a
+ * recent read of up to STREAMS streams left off.  For each confirmed stream a background Prefetcher
+ * reads the next window of blocks in one vectored request into free or clean, unreferenced pages, so
+ * prefetching never forces a write-back.  Each stream's window doubles while it keeps going, up to a
+ * limit that halves whenever a prefetched block is evicted unread and creeps back up as prefetched
+ * blocks are hit.
+ */
+public class Cache {
+
+    private final static int STRIPES = 16;  // independent index locks; a power of two
+
+    private final int cacheSize;
+    private final int bSize;
+    private final int diskBlocks;
+
+    private CacheEntry[] cacheTable = null;
+    private BlockIndex[] stripes;       // block ID -> cache table index, split by block ID
+    private final Object replacement = new Object();    // guards the free stack and victim selection
+    private int[] freePages;            // stack of unused cache table indices
+    private int freeCount;
+    private int claimWaiters;           // threads waiting for a page to stop being busy
+    private volatile boolean paused;    // invalidate is waiting for busy and pinned pages; no new claims
+    private ReplacementPolicy policy;   // chooses victims; called only with the replacement lock held
+    private final PageView pageView = new PageView();
+
+    private final AtomicInteger dirtyPages = new AtomicInteger();
+    private Cleaner cleaner = null;     // background write-back, if started
+
+    // Read-ahead
+    private final static int STREAMS = 8;       // sequential streams tracked at once
+    private final static int MIN_WINDOW = 2;    // blocks first prefetched for a new stream
+    private final static int MAX_WINDOW = 32;
+    private final static int MISS = 0;          // results of copyIfCached
+    private final static int HIT = 1;
+    private final static int PREFETCH_HIT = 2;  // first hit on a prefetched page
+    private final static int WRITE_BACK_FAILED = -2;    // installPage could not write its victim back
+    private Prefetcher prefetcher = null;       // background read-ahead, if started
+    private Stream[] streams;                   // guarded by their own array's monitor
+    private int nextStream;                     // slot to reuse for the next new stream
+    private int windowLimit;                    // current cap on any stream's window
+    private final AtomicLong prefetchedBlocks = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+
+    // Instrumentation, indexed by CacheStats block class
+    private volatile int dataStart = 1;         // first block after the inode region
+    private final LongAdder[] hits = adders(CacheStats.CLASSES);
+    private final LongAdder[] misses = adders(CacheStats.CLASSES);
+    private final LongAdder[] evictions = adders(CacheStats.CLASSES * 4);  // [class * 4 + (ref << 1 | dirty)]
+    private final LongAdder[] writeBacks = adders(CacheStats.CLASSES);
+    private final LongAdder[] cleanings = adders(CacheStats.CLASSES);
+    // Off-heap pages go to and from the disk through a per-thread staging block
+    private final ThreadLocal<byte[]> staging = new ThreadLocal<byte[]>();
+
+    private long victimSearches;                // guarded by the replacement lock, like pagesScanned
+    private long pagesScanned;
+
+    /**
+     * @brief   Constructor for Cache class.  Creates the cache store and initializes page table
+     * @param blockSize     int, size of a disk block (and corresponding cache page)
+     * @param cacheBlocks   int, count of disk blocks / pages that can be cached at once
+     */
+    public Cache(int blockSize, int cacheBlocks) {
+        this(blockSize, cacheBlocks, 1000);
+    }
+
+    /**
+     * @brief   Constructor for Cache class on a disk of a given size
+     * @param blockSize     int, size of a disk block (and corresponding cache page)
+     * @param cacheBlocks   int, count of disk blocks / pages that can be cached at once
+     * @param diskBlocks    int, count of blocks on the disk; valid block IDs are 0 to diskBlocks - 1
+     */
+    public Cache(int blockSize, int cacheBlocks, int diskBlocks) {
+        this(blockSize, cacheBlocks, diskBlocks, false);
+    }
+
+    /**
+     * @brief   Cache constructor choosing where page data lives
+     * @param blockSize     int, bytes per block
+     * @param cacheBlocks   int, pages in the cache
+     * @param diskBlocks    int, blocks on the disk being cached
+     * @param offHeap       boolean, true to keep every page in one direct ByteBuffer slab outside the
+     *                      Java heap instead of one byte[] per page
+     */
+    public Cache(int blockSize, int cacheBlocks, int diskBlocks, boolean offHeap) {
+
+        cacheSize = cacheBlocks;
+        bSize = blockSize;
+        this.diskBlocks = diskBlocks;
+        cacheTable = new CacheEntry[cacheSize];
+
+        ByteBuffer slab = offHeap ? ByteBuffer.allocateDirect(cacheSize * bSize) : null;
+        for (int i = 0; i < cacheSize; ++i){
+            ByteBuffer frame;
+            if (offHeap) {
+                slab.limit((i + 1) * bSize).position(i * bSize);
+                frame = slab.slice();
+            } else {
+                frame = ByteBuffer.wrap(new byte[bSize]);
+            }
+            cacheTable[i] = new CacheEntry(frame);
+        }
+
+        // Any stripe may end up holding every cached block
+        stripes = new BlockIndex[STRIPES];
+        for (int i = 0; i < STRIPES; ++i){
+            stripes[i] = new BlockIndex(cacheSize);
+        }
+
+        freePages = new int[cacheSize];
+        resetFreePages();
+
+        policy = new ReplacementPolicy.EnhancedSecondChance();
+        policy.reset(pageView);
+    }
+
+    /**
+     * @brief   Change how victims are chosen
+     * @post    The new policy starts out knowing only which pages hold blocks, not their history
+     * @param policy        ReplacementPolicy to use; null keeps the current one
+     */
+    public void setPolicy(ReplacementPolicy policy) {
+        if (policy == null) {
+            return;
+        }
+        synchronized (replacement) {
+            this.policy = policy;
+            policy.reset(pageView);
+            for (int i = 0; i < cacheSize; ++i){
+                int block = cacheTable[i].block;
+                if (block != -1) {
+                    policy.filled(i, block);
+                }
+            }
+        }
+    }
+
+    public ReplacementPolicy getPolicy() {
+        synchronized (replacement) {
+            return policy;
+        }
+    }
+
+    /**
+     * @brief   Mark every page in the cache table as free
+     * @post    The free stack holds all pages, lowest index on top, so pages are used in table order
+     */
+    private void resetFreePages() {
+        for (int i = 0; i < cacheSize; ++i){
+            freePages[i] = cacheSize - 1 - i;
+        }
+        freeCount = cacheSize;
+    }
+
+    /**
+     * @brief   Mark a page dirty, counting it and waking the cleaner if too much of the cache is dirty
+     * @pre     Caller holds entry's monitor or has it busy
+     * @param entry         CacheEntry just written to
+     */
+    private void markDirty(CacheEntry entry) {
+        if (!entry.dirtybit) {
+            entry.dirtybit = true;
+            entry.dirtySince = System.currentTimeMillis();
+            int dirty = dirtyPages.incrementAndGet();
+            if (cleaner != null && dirty == cleaner.highWater + 1) {
+                cleaner.wake();
+            }
+        }
+    }
+
+    /**
+     * @brief   Mark a page clean once its data matches the disk
+     * @pre     Caller holds entry's monitor or has it busy
+     * @param entry         CacheEntry written back (or overwritten with on-disk data)
+     */
+    private void markClean(CacheEntry entry) {
+        if (entry.dirtybit) {
+            entry.dirtybit = false;
+            dirtyPages.decrementAndGet();
+        }
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; ++i){
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // This thread's staging block for off-heap page I/O
+    private byte[] stagingBlock() {
+        byte[] block = staging.get();
+        if (block == null) {
+            block = new byte[bSize];
+            staging.set(block);
+        }
+        return block;
+    }
+
+    // CacheStats block class of blockId
+    private int classOf(int blockId) {
+        return CacheStats.classOf(blockId, dataStart);
+    }
+
+    /**
+     * @brief   Tell the cache where the inode region ends, for classifying blocks in its statistics
+     * @param dataStart     int, first block after the inode region
+     */
+    public void setDataStart(int dataStart) {
+        this.dataStart = dataStart;
+    }
+
+    /**
+     * @brief   Take a snapshot of the cache's counters
+     * @return  stats       CacheStats; counters updated concurrently may be a few counts apart
+     */
+    public CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.pages = cacheSize;
+        stats.dirtyPages = dirtyPages.get();
+        for (int c = 0; c < CacheStats.CLASSES; ++c){
+            stats.hits[c] = hits[c].sum();
+            stats.misses[c] = misses[c].sum();
+            for (int e = 0; e < 4; ++e){
+                stats.evictions[c][e] = evictions[c * 4 + e].sum();
+            }
+            stats.writeBacks[c] = writeBacks[c].sum();
+            stats.cleanings[c] = cleanings[c].sum();
+        }
+        synchronized (replacement) {
+            stats.victimSearches = victimSearches;
+            stats.pagesScanned = pagesScanned;
+        }
+        stats.prefetched = prefetchedBlocks.get();
+        stats.prefetchHits = prefetchHits.get();
+        stats.prefetchWasted = prefetchWasted.get();
+        return stats;
+    }
+
+    // The index stripe (and lock) responsible for blockId
+    private BlockIndex stripeOf(int blockId) {
+        return stripes[blockId & (STRIPES - 1)];
+    }
+
+    /**
+     * @brief   Look up the page caching a block
+     * @post    The page may be evicted as soon as the stripe is unlocked, so callers re-check the
+     *          page's block under its monitor (see awaitPage)
+     * @param blockId       int, block to look for
+     * @return  index       int, cache table index, or -1 if blockId is not cached
+     */
+    private int lookup(int blockId) {
+        BlockIndex stripe = stripeOf(blockId);
+        synchronized (stripe) {
+            return stripe.get(blockId);
+        }
+    }
+
+    /**
+     * @brief   Wait until a page is neither being filled nor written back
+     * @pre     Caller holds entry's monitor
+     * @param entry         CacheEntry to wait on
+     * @param blockId       int, block the caller expects entry to hold
+     * @return  holds       boolean, true if entry still holds blockId once it is idle
+     */
+    private boolean awaitPage(CacheEntry entry, int blockId) {
+        while (entry.busy) {
+            try {
+                entry.wait();
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+        }
+        return entry.block == blockId;
+    }
+
+    /**
+     * @brief   Wait until a page is idle and unpinned, so that its data may be overwritten
+     * @pre     Caller holds entry's monitor and holds no pin on entry
+     * @param entry         CacheEntry to wait on
+     * @param blockId       int, block the caller expects entry to hold
+     * @return  holds       boolean, true if entry still holds blockId once it is writable
+     */
+    private boolean awaitWritable(CacheEntry entry, int blockId) {
+        while (entry.busy || entry.pins > 0) {
+            try {
+                entry.wait();
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+        }
+        return entry.block == blockId;
+    }
+
+    /**
+     * @brief   Mark a page idle again and wake anything waiting for it
+     * @param entry         CacheEntry whose fill or write-back is finished
+     * @param free          boolean, true to also return the page to the free stack
+     * @param page          int, entry's cache table index (used only when free is true)
+     */
+    private void releasePage(CacheEntry entry, boolean free, int page) {
+        synchronized (replacement) {
+            synchronized (entry) {
+                entry.busy = false;
+                entry.notifyAll();
+            }
+            if (free) {
+                freePages[freeCount++] = page;
+            }
+            if (claimWaiters > 0) {
+                replacement.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @brief   Take a page to (re)use: a free one if any, otherwise a victim
+     * @post    The page is busy and owned by the caller; it may still hold (and index) its old block
+     * @param prefetch      boolean, true to take only a free or clean, unreferenced page, and to give
+     *                      up rather than wait if there is none
+     * @return  index   int, cache table index of the claimed page, or -1 if prefetch found none
+     */
+    private int claimPage(boolean prefetch){
+
+        synchronized (replacement) {
+            while (true) {
+                int index;
+                if (paused) {
+                    // invalidate is waiting for busy pages; a prefetch may hold some, so it gives up
+                    index = -1;
+                } else if (freeCount > 0) {
+                    index = freePages[--freeCount];
+                } else {
+                    pageView.probes = 0;
+                    index = policy.victim(prefetch);
+                    ++victimSearches;
+                    pagesScanned += pageView.probes;
+                }
+
+                if (index == -1 && prefetch) {
+                    return -1;
+                }
+                if (index != -1) {
+                    CacheEntry entry = cacheTable[index];
+                    synchronized (entry) {
+                        if (!entry.busy && entry.pins == 0) {
+                            entry.busy = true;
+                            if (entry.block != -1) {
+                                policy.evicted(index, entry.block);
+                                int kind = (entry.refbit ? 2 : 0) | (entry.dirtybit ? 1 : 0);
+                                evictions[classOf(entry.block) * 4 + kind].increment();
+                            }
+                            return index;
+                        }
+                    }
+                    // Claimed for write-back or pinned since the policy looked at it; choose again
+                    continue;
+                }
+
+                // Every page is busy, or invalidate is under way; wait for a page to be released
+                ++claimWaiters;
+                try {
+                    replacement.wait();
+                } catch (InterruptedException e) {
+                    SysLib.cerr(e.toString() + "\n");
+                }
+                --claimWaiters;
+            }
+        }
+    }
+
+    /**
+     * @brief   Claim a page for blockId and index it there, evicting whatever the page held
+     * @pre     blockId is valid and was not cached when the caller looked
+     * @post    On success the page is busy, holds blockId in the index, and its data must be filled in
+     *          by the caller before calling releasePage.  Threads that miss on blockId meanwhile
+     *          find the page and wait for it rather than reading the disk themselves.
+     * @param blockId       int, block to make room for
+     * @param prefetch      boolean, true to use only a free or clean page (see claimPage)
+     * @return  index       int, cache table index of the page; -1 if another thread cached blockId
+     *                      first or a writev of it was under way (the caller should look it up again;
+     *                      unless prefetching, the write has ended by then), or if prefetch found no
+     *                      page; WRITE_BACK_FAILED if the victim was dirty and could not be written back
+     */
+    private int installPage(int blockId, boolean prefetch){
+
+        int index = claimPage(prefetch);
+        if (index == -1) {
+            return -1;
+        }
+        CacheEntry entry = cacheTable[index];
+
+        // A prefetched block leaving unread was wasted effort; read ahead less from now on
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            prefetchWasted.incrementAndGet();
+            synchronized (streams) {
+                windowLimit = Math.max(MIN_WINDOW, windowLimit / 2);
+            }
+        }
+
+        // The victim's block stays indexed (so its readers wait on the busy page) until its data is
+        // back on disk; only then can a miss on it safely read the disk
+        int old = entry.block;
+        if (old != -1) {
+            if (entry.dirtybit) {
+                if (!entry.writeTo(old)) {
+                    // The page holds the only current copy of old, so it stays cached and dirty
+                    synchronized (replacement) {
+                        policy.filled(index, old);
+                    }
+                    releasePage(entry, false, index);
+                    return WRITE_BACK_FAILED;
+                }
+                markClean(entry);
+                writeBacks[classOf(old)].increment();
+            }
+            BlockIndex stripe = stripeOf(old);
+            synchronized (stripe) {
+                stripe.remove(old);
+                entry.block = -1;
+            }
+        }
+
+        boolean installed = false;
+        boolean writing = false;
+        BlockIndex stripe = stripeOf(blockId);
+        synchronized (stripe) {
+            if (stripe.writing(blockId)) {
+                // Reading it now could fetch the contents the writev is replacing
+                writing = true;
+            } else if (stripe.get(blockId) == -1) {
+                stripe.put(blockId, index);
+                entry.block = blockId;
+                entry.refbit = true;
+                entry.lastUse = System.nanoTime();
+                installed = true;
+            }
+        }
+        if (installed) {
+            synchronized (replacement) {
+                policy.filled(index, blockId);
+            }
+            return index;
+        }
+
+        // Lost the race to cache blockId, or must wait for a writev of it; hand the page back first,
+        // so no page is held busy while waiting
+        releasePage(entry, true, index);
+        if (writing && !prefetch) {
+            synchronized (stripe) {
+                while (stripe.writing(blockId)) {
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        SysLib.cerr(e.toString() + "\n");
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @brief   Drop a page that was installed for a block but could not be filled
+     * @param index         int, cache table index of the busy page
+     */
+    private void abandonPage(int index){
+        CacheEntry entry = cacheTable[index];
+        int block = entry.block;
+        synchronized (replacement) {
+            policy.evicted(index, block);
+        }
+        BlockIndex stripe = stripeOf(block);
+        synchronized (stripe) {
+            stripe.remove(block);
+            entry.block = -1;
+        }
+        releasePage(entry, true, index);
+    }
+
+    /**
+     * @brief   Attempt to read a data block from buffer; if not found, load it in
+     * @pre     Buffer is initialized, and desired block exists on disk
+     * @post    Block is stored in the buffer, possibly replacing another paged block
+     * @param blockId       int index of block (on disk) to try to read
+     * @param buffer        byte[] to store the desired data in
+     * @return read         boolean, only false if blockId was invalid
+     */
+    public boolean read(int blockId, byte buffer[]) {
+        return read(blockId, 0, buffer, 0, bSize);
+    }
+
+    /**
+     * @brief   Read part of a block, copying it straight out of the cached copy
+     * @pre     buffer has room for length bytes at bufferOffset, and offset + length is within a block
+     * @post    The bytes are in buffer; an uncached block is loaded into the cache first
+     * @param blockId       int index of block (on disk) to read from
+     * @param offset        int, first byte of the block to copy
+     * @param buffer        byte[] to copy into
+     * @param bufferOffset  int, where in buffer the bytes go
+     * @param length        int, bytes to copy
+     * @return read         boolean, false if the arguments were invalid or the block could not be read
+     */
+    public boolean read(int blockId, int offset, byte buffer[], int bufferOffset, int length) {
+
+        // Trivial case: blockId or the range is invalid
+        if(blockId < 0 || blockId >= diskBlocks) {return false;}
+        if(offset < 0 || length < 0 || offset + length > bSize || bufferOffset < 0
+           || bufferOffset + length > buffer.length) {return false;}
+
+        while (true) {
+
+            // Check if the requested block is in the cache; if so, copy it into the buffer and update
+            // the reference bit of that cache block.
+            int found = copyIfCached(blockId, offset, buffer, bufferOffset, length);
+            if (found != MISS) {
+                if (found == PREFETCH_HIT) {
+                    noteAccess(blockId, blockId);
+                }
+                return true;
+            }
+
+            // If the block was *not* in the cache, load it from the disk into cache (and the buffer)
+            noteAccess(blockId, blockId);
+            int index = installPage(blockId, false);
+            if (index == WRITE_BACK_FAILED) {
+                return false;
+            }
+            if (index == -1) {
+                continue;
+            }
+            misses[classOf(blockId)].increment();
+
+            CacheEntry entry = cacheTable[index];
+            boolean readFromDisk = entry.readFrom(blockId);
+            if (!readFromDisk) {
+                // Nothing valid was loaded, so the page goes back on the free stack
+                abandonPage(index);
+                return false;
+            }
+
+            entry.copyOut(offset, buffer, bufferOffset, length);
+            releasePage(entry, false, index);
+            return true;
+        }
+    }
+
+    /**
+     * @brief   Copy (part of) a block out of the cache if it is cached
+     * @param blockId       int, block to copy
+     * @param offset        int, first byte of the block to copy
+     * @param buffer        byte[] to copy into
+     * @param bufferOffset  int, where in buffer the bytes go
+     * @param length        int, bytes to copy
+     * @return  found       int, MISS if blockId is not cached, PREFETCH_HIT if this is the first use
+     *                      of a prefetched copy, otherwise HIT
+     */
+    private int copyIfCached(int blockId, int offset, byte buffer[], int bufferOffset, int length) {
+        int index = lookup(blockId);
+        if (index == -1) {
+            return MISS;
+        }
+
+        CacheEntry entry = cacheTable[index];
+        synchronized (entry) {
+            // The page may have been evicted while we waited for it
+            if (!awaitPage(entry, blockId)) {
+                return MISS;
+            }
+            entry.copyOut(offset, buffer, bufferOffset, length);
+            entry.refbit = true;
+            entry.lastUse = System.nanoTime();
+            hits[classOf(blockId)].increment();
+            return usePrefetched(entry) ? PREFETCH_HIT : HIT;
+        }
+    }
+
+    /**
+     * @brief   Count the first use of a prefetched page
+     * @pre     Caller holds entry's monitor
+     * @param entry         CacheEntry just read or written
+     * @return  prefetched  boolean, true if entry was prefetched and not used until now
+     */
+    private boolean usePrefetched(CacheEntry entry) {
+        if (!entry.prefetched) {
+            return false;
+        }
+        entry.prefetched = false;
+        prefetchHits.incrementAndGet();
+        synchronized (streams) {
+            windowLimit = Math.min(windowLimit + 1, maxWindow());
+        }
+        return true;
+    }
+
+    /**
+     * @brief   Pin a block's page so it can be read in place, loading it if it is not cached
+     * @pre     The caller does not write blockId, or claim any other page, until it releases the pin
+     * @post    The page holds blockId and is not evicted or overwritten until release(page)
+     * @param blockId       int index of block (on disk) to pin
+     * @return  page        int, cache table index to pass to view and release, or -1 if blockId was
+     *                      invalid or could not be read
+     */
+    public int acquire(int blockId) {
+
+        // Trivial case: blockId is invalid
+        if(blockId < 0 || blockId >= diskBlocks) {return -1;}
+
+        while (true) {
+
+            int index = lookup(blockId);
+            if (index != -1) {
+                CacheEntry entry = cacheTable[index];
+                boolean prefetchHit;
+                synchronized (entry) {
+                    if (!awaitPage(entry, blockId)) {
+                        // Evicted while we waited; try again
+                        continue;
+                    }
+                    ++entry.pins;
+                    entry.refbit = true;
+                    entry.lastUse = System.nanoTime();
+                    hits[classOf(blockId)].increment();
+                    prefetchHit = usePrefetched(entry);
+                }
+                if (prefetchHit) {
+                    noteAccess(blockId, blockId);
+                }
+                return index;
+            }
+
+            noteAccess(blockId, blockId);
+            index = installPage(blockId, false);
+            if (index == WRITE_BACK_FAILED) {
+                return -1;
+            }
+            if (index == -1) {
+                continue;
+            }
+            misses[classOf(blockId)].increment();
+
+            CacheEntry entry = cacheTable[index];
+            if (!entry.readFrom(blockId)) {
+                abandonPage(index);
+                return -1;
+            }
+
+            // Pin before the page stops being busy, so it cannot be chosen as a victim in between
+            synchronized (entry) {
+                ++entry.pins;
+            }
+            releasePage(entry, false, index);
+            return index;
+        }
+    }
+
+    /**
+     * @brief   Lend a read-only view of part of a pinned page
+     * @pre     page was returned by acquire and has not been released
+     * @param page          int, cache table index from acquire
+     * @param offset        int, first byte of the block to view
+     * @param length        int, bytes to view
+     * @return  view        ByteBuffer, read-only, positioned at 0 over offset..offset + length of the
+     *                      block, or null if the range is not within a block
+     */
+    public ByteBuffer view(int page, int offset, int length) {
+        if (page < 0 || page >= cacheSize || offset < 0 || length < 0 || offset + length > bSize) {
+            return null;
+        }
+        return cacheTable[page].view(offset, length);
+    }
+
+    /**
+     * @brief   Unpin a page pinned by acquire
+     * @post    Once its last pin is released the page may be written or evicted again
+     * @param page          int, cache table index from acquire
+     */
+    public void release(int page) {
+        if (page < 0 || page >= cacheSize) {
+            return;
+        }
+        CacheEntry entry = cacheTable[page];
+        synchronized (replacement) {
+            synchronized (entry) {
+                if (entry.pins == 0 || --entry.pins > 0) {
+                    return;
+                }
+                entry.notifyAll();
+            }
+            if (claimWaiters > 0) {
+                replacement.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @brief   Attempt to write a data block to the buffer; if not found, load it in then write
+     * @pre     Buffer is initialized, and desired block exists on disk
+     * @post    Block is stored in the buffer, possibly replacing another paged block, and changes written to it
+     * @param blockId       int index of block (on disk) to try to write into
+     * @param buffer        byte[] to read the desired data in from
+     * @return wrote        boolean, only false if blockId was invalid
+     */
+    public boolean write(int blockId, byte buffer[]) {
+
+        // Trivial case: blockId is invalid
+        if(blockId < 0 || blockId >= diskBlocks) {return false;}
+
+        while (true) {
+
+            // Check if the requested block is in the cache; if so, copy the buffer into it and update
+            // the reference and dirty bits of that cache block.
+            int index = lookup(blockId);
+            if (index != -1) {
+                CacheEntry entry = cacheTable[index];
+                synchronized (entry) {
+                    if (awaitWritable(entry, blockId)) {
+                        entry.copyIn(buffer, 0, 0, bSize);
+                        entry.refbit = true;
+                        entry.lastUse = System.nanoTime();
+                        hits[classOf(blockId)].increment();
+                        usePrefetched(entry);
+                        markDirty(entry);
+                        return true;
+                    }
+                }
+                // Evicted while we waited; try again
+                continue;
+            }
+
+            // If the block was *not* in the cache, select a victim to write back and replace; the whole
+            // block is overwritten, so nothing needs to be read from disk
+            index = installPage(blockId, false);
+            if (index == WRITE_BACK_FAILED) {
+                return false;
+            }
+            if (index == -1) {
+                continue;
+            }
+            misses[classOf(blockId)].increment();
+
+            CacheEntry entry = cacheTable[index];
+            entry.copyIn(buffer, 0, 0, bSize);
+            markDirty(entry);
+            releasePage(entry, false, index);
+            return true;
+        }
+    }
+
+    /**
+     * @brief   Write part of a block, merging it into the cached copy
+     * @pre     buffer holds length bytes at bufferOffset, and offset + length is within a block
+     * @post    The bytes are in the block's page, which is dirty; the rest of the block is unchanged.
+     *          An uncached block is read in first, so later writes to it are merged in memory.
+     * @param blockId       int index of block (on disk) to write into
+     * @param offset        int, first byte of the block to overwrite
+     * @param buffer        byte[] to copy from
+     * @param bufferOffset  int, where in buffer the bytes start
+     * @param length        int, bytes to write
+     * @return wrote        boolean, false if the arguments were invalid or the block could not be read
+     */
+    public boolean write(int blockId, int offset, byte buffer[], int bufferOffset, int length) {
+
+        // Trivial case: blockId or the range is invalid
+        if(blockId < 0 || blockId >= diskBlocks) {return false;}
+        if(offset < 0 || length < 0 || offset + length > bSize || bufferOffset < 0
+           || bufferOffset + length > buffer.length) {return false;}
+
+        while (true) {
+
+            int index = lookup(blockId);
+            if (index != -1) {
+                CacheEntry entry = cacheTable[index];
+                synchronized (entry) {
+                    if (awaitWritable(entry, blockId)) {
+                        entry.copyIn(buffer, bufferOffset, offset, length);
+                        entry.refbit = true;
+                        entry.lastUse = System.nanoTime();
+                        hits[classOf(blockId)].increment();
+                        usePrefetched(entry);
+                        markDirty(entry);
+                        return true;
+                    }
+                }
+                // Evicted while we waited; try again
+                continue;
+            }
+
+            // The rest of the block must survive, so an uncached block is read in before merging
+            index = installPage(blockId, false);
+            if (index == WRITE_BACK_FAILED) {
+                return false;
+            }
+            if (index == -1) {
+                continue;
+            }
+            misses[classOf(blockId)].increment();
+
+            CacheEntry entry = cacheTable[index];
+            if (!entry.readFrom(blockId)) {
+                abandonPage(index);
+                return false;
+            }
+            entry.copyIn(buffer, bufferOffset, offset, length);
+            markDirty(entry);
+            releasePage(entry, false, index);
+            return true;
+        }
+    }
+
+    /**
+     * @brief   Read a list of blocks into one contiguous buffer, serving cached blocks from the cache
+     * @pre     Buffer holds at least blockIds.length blocks
+     * @post    Block blockIds[i] is in buffer at i * block size.  Uncached blocks are read from disk in
+     *          one vectored request and are not added to the cache, so large file reads do not evict
+     *          the metadata blocks that are re-read on every operation.
+     * @param blockIds      int[], blocks (on disk) to read
+     * @param buffer        byte[] to store the data in
+     * @return read         boolean, false if any blockId was invalid or the disk read failed
+     */
+    public boolean readv(int[] blockIds, byte buffer[]) {
+
+        if(!validVector(blockIds, buffer)) {return false;}
+
+        // Serve what the cache holds, and note the blocks that must come from the disk
+        int[] missSlots = null;         // allocated on the first miss, so an all-hit read allocates nothing
+        int misses = 0;
+        boolean prefetchHit = false;
+        for (int i = 0; i < blockIds.length; ++i){
+            int found = copyIfCached(blockIds[i], 0, buffer, i * bSize, bSize);
+            if (found == MISS){
+                if (missSlots == null){
+                    missSlots = new int[blockIds.length];
+                }
+                missSlots[misses++] = i;
+                this.misses[classOf(blockIds[i])].increment();
+            }
+            prefetchHit |= (found == PREFETCH_HIT);
+        }
+
+        // The whole vector counts as one access for stream detection
+        if (misses > 0 || prefetchHit){
+            noteAccess(blockIds[0], blockIds[blockIds.length - 1]);
+        }
+
+        if (misses == 0){
+            return true;
+        }
+        if (misses == blockIds.length){
+            return diskRead(blockIds, buffer);
+        }
+
+        int[] missIds = new int[misses];
+        for (int m = 0; m < misses; ++m){
+            missIds[m] = blockIds[missSlots[m]];
+        }
+        byte[] missData = new byte[misses * bSize];
+        if (!diskRead(missIds, missData)){
+            return false;
+        }
+        for (int m = 0; m < misses; ++m){
+            System.arraycopy(missData, m * bSize, buffer, missSlots[m] * bSize, bSize);
+        }
+
+        return true;
+    }
+
+    /**
+     * @brief   Write a list of blocks from one contiguous buffer straight to disk, refreshing cached copies
+     * @pre     Buffer holds at least blockIds.length blocks
+     * @post    Every block is on disk in one vectored request; any cached copy now holds the same data
+     *          and stays dirty, so it is never dropped unwritten should the disk write fail.  Blocks not
+     *          already cached are not added to the cache, and are not read into it until the write ends.
+     * @param blockIds      int[], blocks (on disk) to write
+     * @param buffer        byte[] holding block blockIds[i] at i * block size
+     * @return wrote        boolean, false if any blockId was invalid or the disk write failed
+     */
+    public boolean writev(int[] blockIds, byte buffer[]) {
+
+        if(!validVector(blockIds, buffer)) {return false;}
+
+        // Refresh cached copies first: an older dirty copy evicted after the disk write would
+        // otherwise be written back over the new data.  A refreshed copy is dirty, so evicting it
+        // before the disk write lands writes it back rather than letting a miss re-read old data.
+        // Uncached blocks are marked as being written, which keeps misses from caching them.
+        boolean[] writing = new boolean[blockIds.length];
+        for (int i = 0; i < blockIds.length; ++i){
+            while (true) {
+                int index;
+                BlockIndex stripe = stripeOf(blockIds[i]);
+                synchronized (stripe) {
+                    index = stripe.get(blockIds[i]);
+                    if (index == -1) {
+                        stripe.startWrite(blockIds[i]);
+                        writing[i] = true;
+                        break;
+                    }
+                }
+                CacheEntry entry = cacheTable[index];
+                synchronized (entry) {
+                    if (awaitWritable(entry, blockIds[i])){
+                        entry.copyIn(buffer, i * bSize, 0, bSize);
+                        entry.refbit = true;
+                        markDirty(entry);
+                        break;
+                    }
+                }
+                // Evicted while we waited; look again
+            }
+        }
+
+        boolean wrote = diskWrite(blockIds, buffer);
+        for (int i = 0; i < blockIds.length; ++i){
+            if (writing[i]) {
+                BlockIndex stripe = stripeOf(blockIds[i]);
+                synchronized (stripe) {
+                    stripe.endWrite(blockIds[i]);
+                    stripe.notifyAll();
+                }
+            }
+        }
+        return wrote;
+    }
+
+    /**
+     * @brief   Whether blockIds name consecutive blocks that exactly fill buffer, so the disk can
+     *          move them as one sequential run rather than a vector
+     * @param blockIds      int[], blocks (on disk) in buffer order
+     * @param buffer        byte[] holding block blockIds[i] at i * block size
+     * @return run          boolean, true if blockIds[i] == blockIds[0] + i for every i
+     */
+    public static boolean isRun(int[] blockIds, byte buffer[]) {
+        if (blockIds.length < 2 || buffer.length != blockIds.length * Disk.blockSize) {
+            return false;
+        }
+        for (int i = 1; i < blockIds.length; ++i){
+            if (blockIds[i] != blockIds[0] + i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One disk read for all of blockIds: a run when they are consecutive, a vector otherwise
+    private static boolean diskRead(int[] blockIds, byte buffer[]) {
+        if (isRun(blockIds, buffer)) {
+            return SysLib.rawreadrun(blockIds[0], buffer) == Kernel.OK;
+        }
+        return SysLib.rawreadv(blockIds, buffer) == Kernel.OK;
+    }
+
+    // One disk write for all of blockIds: a run when they are consecutive, a vector otherwise
+    private static boolean diskWrite(int[] blockIds, byte buffer[]) {
+        if (isRun(blockIds, buffer)) {
+            return SysLib.rawwriterun(blockIds[0], buffer) == Kernel.OK;
+        }
+        return SysLib.rawwritev(blockIds, buffer) == Kernel.OK;
+    }
+
+    private boolean validVector(int[] blockIds, byte buffer[]) {
+        if (buffer.length < blockIds.length * bSize){
+            return false;
+        }
+        for (int i = 0; i < blockIds.length; ++i){
+            if (blockIds[i] < 0 || blockIds[i] >= diskBlocks){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @brief   Write out all dirty blocks in cache without syncing the DISK file
+     * @pre     Cache has been initialized
+     * @post    Any used, dirty blocks will be written back, their dirty bit un-set.  Pages busy with a
+     *          fill or an eviction are skipped; an eviction writes its own page back.
+     */
+    public void writeBack() {
+
+        // Write back all pages (that are valid and dirty)
+        for(int i = 0; i < cacheSize; ++i){
+            cleanPage(i, false, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @brief   Write one page back to disk if it is dirty and idle
+     * @param index         int, cache table index of the page
+     * @param unreferenced  boolean, true to write the page back if its reference bit is clear
+     * @param dirtyBefore   long, write the page back if it has been dirty since before this time
+     * @return  cleaned     boolean, true if the page was written back, false if it was skipped or
+     *                      the write failed (the page then stays dirty)
+     */
+    private boolean cleanPage(int index, boolean unreferenced, long dirtyBefore) {
+        CacheEntry entry = cacheTable[index];
+        synchronized (entry) {
+            if (paused || entry.busy || entry.block == -1 || !entry.dirtybit) {
+                return false;
+            }
+            if (!(unreferenced && !entry.refbit) && entry.dirtySince >= dirtyBefore) {
+                return false;
+            }
+            entry.busy = true;
+        }
+
+        // A failed write-back leaves the page dirty, so a later pass or eviction tries again
+        boolean cleaned = entry.writeTo(entry.block);
+        if (cleaned) {
+            markClean(entry);
+            cleanings[classOf(entry.block)].increment();
+        }
+        releasePage(entry, false, index);
+        return cleaned;
+    }
+
+    /**
+     * @brief   Start a background thread that writes dirty pages back ahead of eviction
+     * @pre     Not already started
+     * @param dirtyRatio    int, percentage of pages that may be dirty before the cleaner wakes
+     * @param maxAge        int, ms a page may stay dirty before the cleaner writes it back (0 for no limit)
+     */
+    public void startCleaner(int dirtyRatio, int maxAge) {
+        cleaner = new Cleaner(dirtyRatio, maxAge);
+        cleaner.start();
+    }
+
+    /**
+     * @brief   Write out all dirty blocks in cache and force write-out to DISK file
+     * @pre     Cache has been initialized
+     * @post    Any used, dirty blocks will be written back, their dirty bit un-set.
+     */
+    public void sync() {
+
+        this.writeBack();
+
+        // Call Disk.class' sync() method via SysLib to force write-out to backing "disk" file
+        SysLib.sync();
+    }
+
+    /**
+     * @brief   Sync, then clear cache for re-use
+     * @pre     Cache has been initialized
+     * @post    Any dirty blocks are written to disk, and all cache blocks are re-set to unused
+     */
+    public void flush() {
+
+        this.sync();
+        this.invalidate();
+    }
+
+    /**
+     * @brief   Drop every cached block without writing anything back
+     * @pre     Cache has been initialized, and nothing cached is still needed (e.g. the disk is about
+     *          to be reformatted)
+     * @post    All cache blocks are re-set to unused.  Fills, write-backs and pins under way (from the
+     *          cleaner, the prefetcher or other threads) finish first, and no new ones start meanwhile.
+     */
+    public void invalidate() {
+
+        synchronized (replacement) {
+            paused = true;
+            while (pagesInUse()) {
+                ++claimWaiters;
+                try {
+                    replacement.wait();
+                } catch (InterruptedException e) {
+                    SysLib.cerr(e.toString() + "\n");
+                }
+                --claimWaiters;
+            }
+
+            for (int i = 0; i < STRIPES; ++i){
+                synchronized (stripes[i]) {
+                    stripes[i].clear();
+                }
+            }
+
+            for (int i = 0; i < cacheSize; ++i){
+                CacheEntry entry = cacheTable[i];
+                synchronized (entry) {
+                    entry.block = -1;
+                    entry.refbit = false;
+                    entry.dirtybit = false;
+                    entry.prefetched = false;
+                }
+            }
+            dirtyPages.set(0);
+
+            // Now all blocks are free ("invalid") again
+            resetFreePages();
+            policy.reset(pageView);
+            paused = false;
+            replacement.notifyAll();
+        }
+    }
+
+    // Whether any page is busy or pinned; invalidate must not reset such a page under its owner
+    private boolean pagesInUse() {
+        for (int i = 0; i < cacheSize; ++i){
+            CacheEntry entry = cacheTable[i];
+            synchronized (entry) {
+                if (entry.busy || entry.pins > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @brief   Start a background thread that reads ahead of sequential streams
+     * @pre     Not already started
+     */
+    public void startReadAhead() {
+        streams = new Stream[STREAMS];
+        for (int i = 0; i < STREAMS; ++i){
+            streams[i] = new Stream();
+        }
+        windowLimit = maxWindow();
+        prefetcher = new Prefetcher();
+        prefetcher.start();
+    }
+
+    // Blocks prefetched, prefetched blocks later used, and prefetched blocks evicted unused
+    public long getPrefetchedBlocks() {
+        return prefetchedBlocks.get();
+    }
+
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+
+    // Largest window worth using: prefetching more than half the cache evicts what it just read
+    private int maxWindow() {
+        return Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, cacheSize / 2));
+    }
+
+    /**
+     * @brief   Record a read of blocks first to last that missed or used a prefetched block, and
+     *          queue read-ahead if it continues a stream with less than a window prefetched
+     * @param first         int, first block read
+     * @param last          int, last block read
+     */
+    private void noteAccess(int first, int last) {
+        if (prefetcher == null) {
+            return;
+        }
+
+        int from;
+        int count;
+        synchronized (streams) {
+            Stream stream = null;
+            for (int i = 0; i < STREAMS && stream == null; ++i){
+                if (streams[i].continuedBy(first)) {
+                    stream = streams[i];
+                }
+            }
+
+            // Not sequential with anything recent: start watching a new stream in the oldest slot
+            if (stream == null) {
+                stream = streams[nextStream];
+                nextStream = (nextStream + 1) % STREAMS;
+                stream.next = last + 1;
+                stream.ahead = last + 1;
+                stream.window = 0;
+                return;
+            }
+
+            stream.next = last + 1;
+            stream.ahead = Math.max(stream.ahead, stream.next);
+            if (stream.window > 0 && stream.ahead - stream.next >= stream.window) {
+                return;
+            }
+
+            // Less than a window left: prefetch another, larger than the last one, so that one window
+            // is always in flight ahead of the reader
+            stream.window = (stream.window == 0) ? MIN_WINDOW : Math.min(stream.window * 2, windowLimit);
+            from = stream.ahead;
+            count = Math.min(stream.window, diskBlocks - from);
+            stream.ahead += stream.window;
+        }
+
+        if (count > 0) {
+            prefetcher.request(from, count);
+        }
+    }
+
+    /**
+     * @brief   Read uncached blocks from..from+count-1 into the cache in one vectored request
+     * @post    Each block read is cached, clean, referenced (so it gets the same second chance as a
+     *          block just read) and marked prefetched; blocks already
+     *          cached, or for which no free or clean page was available, are skipped
+     * @param from          int, first block
+     * @param count         int, number of blocks
+     */
+    private void prefetch(int from, int count) {
+        int[] pages = new int[count];
+        int[] blockIds = new int[count];
+        int n = 0;
+
+        for (int block = from; block < from + count; ++block){
+            if (lookup(block) != -1) {
+                continue;
+            }
+            int index = installPage(block, true);
+            if (index >= 0) {
+                pages[n] = index;
+                blockIds[n++] = block;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+
+        byte[] span = new byte[n * bSize];
+        boolean read = diskRead(Arrays.copyOf(blockIds, n), span);
+        for (int i = 0; i < n; ++i){
+            if (!read) {
+                abandonPage(pages[i]);
+                continue;
+            }
+            CacheEntry entry = cacheTable[pages[i]];
+            entry.copyIn(span, i * bSize, 0, bSize);
+            entry.prefetched = true;
+            releasePage(entry, false, pages[i]);
+        }
+        if (read) {
+            prefetchedBlocks.addAndGet(n);
+        }
+    }
+
+    /**
+     * Inner Class with nothing but public members: one sequential stream being read ahead of.
+     */
+    private class Stream {
+
+        public int next = -1;       // block a continuing read would start at
+        public int ahead = -1;      // first block not yet prefetched
+        public int window = 0;      // blocks in the last prefetch; 0 until the stream is confirmed
+
+        // A read starting at block continues this stream if it picks up at or past next but
+        // within what has been prefetched
+        public boolean continuedBy(int block){
+            return next >= 0 && block >= next && block < Math.max(ahead, next + 1);
+        }
+    }
+
+    /**
+     * Inner class for the background read-ahead thread, which services prefetch requests in order.
+     * Requests beyond QUEUE_LIMIT are dropped rather than let read-ahead fall far behind.
+     */
+    private class Prefetcher extends Thread {
+
+        private final static int QUEUE_LIMIT = 16;
+
+        private final LinkedList<int[]> queue = new LinkedList<int[]>();
+
+        public Prefetcher(){
+            setDaemon(true);
+        }
+
+        public synchronized void request(int from, int count){
+            if (queue.size() < QUEUE_LIMIT) {
+                queue.addLast(new int[]{from, count});
+                notify();
+            }
+        }
+
+        private synchronized int[] take(){
+            while (queue.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    SysLib.cerr(e.toString() + "\n");
+                }
+            }
+            return queue.removeFirst();
+        }
+
+        public void run(){
+            while (true) {
+                int[] request = take();
+                prefetch(request[0], request[1]);
+            }
+        }
+    }
+
+    /**
+     * Inner class for the background cleaner.  It sleeps for a quarter of the maximum age (or
+     * idlePeriod ms without one), or until markDirty reports that the dirty share has passed the
+     * high watermark, and then makes one pass over the cache table.
+     */
+    private class Cleaner extends Thread {
+
+        private final static int idlePeriod = 250;
+
+        public final int highWater;     // dirty pages above which unreferenced dirty pages are cleaned
+        private final int lowWater;     // ... down to this many
+        private final int maxAge;
+        private boolean woken = false;
+
+        /**
+         * @brief       Inner class Cleaner's constructor.
+         * @param dirtyRatio    int, percentage of pages that may be dirty before cleaning starts
+         * @param maxAge        int, ms a page may stay dirty (0 for no limit)
+         */
+        public Cleaner(int dirtyRatio, int maxAge){
+            highWater = cacheSize * Math.max(0, Math.min(dirtyRatio, 100)) / 100;
+            lowWater = highWater / 2;
+            this.maxAge = Math.max(maxAge, 0);
+            setDaemon(true);
+        }
+
+        public synchronized void wake(){
+            woken = true;
+            notify();
+        }
+
+        private synchronized void pause(){
+            if (!woken) {
+                try {
+                    wait((maxAge > 0) ? Math.max(maxAge / 4, 1) : idlePeriod);
+                } catch (InterruptedException e) {
+                    SysLib.cerr(e.toString() + "\n");
+                }
+            }
+            woken = false;
+        }
+
+        public void run(){
+            while (true) {
+                pause();
+
+                long dirtyBefore = (maxAge > 0) ? System.currentTimeMillis() - maxAge : 0;
+                boolean overWater = dirtyPages.get() > highWater;
+
+                for (int i = 0; i < cacheSize; ++i){
+                    if (overWater && dirtyPages.get() <= lowWater) {
+                        overWater = false;
+                    }
+                    if (!overWater && dirtyBefore == 0) {
+                        break;
+                    }
+                    // Pages still referenced are left alone unless they have grown too old
+                    cleanPage(i, overWater, dirtyBefore);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inner class giving the replacement policy its view of the cache table.
+     */
+    private class PageView implements ReplacementPolicy.Pages {
+
+        public int probes;          // evictable calls since claimPage last reset it
+
+
+        public int size(){
+            return cacheSize;
+        }
+
+        public boolean evictable(int page, boolean cleanOnly){
+            ++probes;
+            CacheEntry entry = cacheTable[page];
+            if (entry.busy || entry.pins > 0 || entry.block == -1) {
+                return false;
+            }
+            return !cleanOnly || (!entry.dirtybit && !entry.prefetched);
+        }
+
+        public boolean dirty(int page){
+            return cacheTable[page].dirtybit;
+        }
+
+        public boolean referenced(int page){
+            return cacheTable[page].refbit;
+        }
+
+        public void clearReferenced(int page){
+            cacheTable[page].refbit = false;
+        }
+
+        public long lastUse(int page){
+            return cacheTable[page].lastUse;
+        }
+    }
+
+    /**
+     * Inner class mapping block IDs to cache table indices with a primitive open-addressing hash table,
+     * so finding a cached block costs the same however large the cache is.  Slots use linear probing,
+     * and removal shifts later entries of a probe run back rather than leaving tombstones.
+     */
+    private static class BlockIndex {
+
+        private final int[] keys;       // block IDs; -1 marks an empty slot
+        private final int[] values;     // cache table index of keys[i]
+        private final HashMap<Integer, Integer> writes = new HashMap<Integer, Integer>(); // writevs under way, by block
+        private final int mask;
+        private final int shift;        // keeps the top log2(capacity) bits of the hash
+
+        /**
+         * @brief       Inner class BlockIndex's constructor.
+         * @param entries       int, most blocks held at once; the table stays at most half full
+         */
+        public BlockIndex(int entries){
+            int capacity = 2;
+            while (capacity < entries * 2){
+                capacity <<= 1;
+            }
+            keys = new int[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            shift = 32 - Integer.numberOfTrailingZeros(capacity);
+            clear();
+        }
+
+        // Spread consecutive block IDs across the table
+        private int slotOf(int block){
+            return (block * 0x9E3779B9) >>> shift;
+        }
+
+        /**
+         * @brief   Look up a block
+         * @param block     int, block ID
+         * @return  index   int, cache table index holding block, or -1 if it is not cached
+         */
+        public int get(int block){
+            for (int slot = slotOf(block); keys[slot] != -1; slot = (slot + 1) & mask){
+                if (keys[slot] == block){
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        public void put(int block, int index){
+            int slot = slotOf(block);
+            while (keys[slot] != -1 && keys[slot] != block){
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = block;
+            values[slot] = index;
+        }
+
+        public void remove(int block){
+            int slot = slotOf(block);
+            while (keys[slot] != block){
+                if (keys[slot] == -1){
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            // Move back any later entry of this probe run whose home slot no longer reaches it
+            int next = (slot + 1) & mask;
+            while (keys[next] != -1){
+                int home = slotOf(keys[next]);
+                if (((next - home) & mask) >= ((next - slot) & mask)){
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[slot] = -1;
+        }
+
+        public void clear(){
+            Arrays.fill(keys, -1);
+        }
+
+        // Writevs of uncached blocks in progress; clear leaves them, as they still reach the disk
+        public void startWrite(int block){
+            Integer count = writes.get(block);
+            writes.put(block, (count == null) ? 1 : count + 1);
+        }
+
+        public void endWrite(int block){
+            int count = writes.get(block);
+            if (count == 1) {
+                writes.remove(block);
+            } else {
+                writes.put(block, count - 1);
+            }
+        }
+
+        public boolean writing(int block){
+            return !writes.isEmpty() && writes.containsKey(block);
+        }
+    }
+
+    /**
+     * Inner Class with nothing but public members; essentially as Struct-y a
+     * data object as Java can encompass.  Its monitor guards its fields; the
+     * bits are volatile so victim selection can scan them without taking it.
+     */
+    private class CacheEntry {
+
+        public volatile int block = -1;
+        public volatile boolean refbit = false;
+        public volatile boolean dirtybit = false;
+        public volatile boolean busy = false;   // being filled from or written back to disk
+        public volatile long dirtySince;        // when dirtybit was last set
+        public volatile boolean prefetched = false;     // read ahead and not yet used
+        public volatile long lastUse;           // System.nanoTime() of the last read or write
+        public volatile int pins = 0;           // outstanding acquires; changed under the entry's monitor
+        public final ByteBuffer frame;          // the page's data: a byte[] or a slice of the off-heap slab
+
+        /**
+         * @brief       Inner class CacheEntry's constructor.
+         * @param frame         ByteBuffer of one block's size holding this page's data
+         */
+        public CacheEntry(ByteBuffer frame){
+            this.frame = frame;
+        }
+
+        // The copy and I/O methods below move frame's position and limit, so each caller must have
+        // the page to itself: holding its monitor, or having it busy.
+
+        public void copyIn(byte[] src, int srcOffset, int offset, int length){
+            if (frame.hasArray()) {
+                System.arraycopy(src, srcOffset, frame.array(), offset, length);
+            } else {
+                frame.clear();
+                frame.position(offset);
+                frame.put(src, srcOffset, length);
+            }
+        }
+
+        public void copyOut(int offset, byte[] dst, int dstOffset, int length){
+            if (frame.hasArray()) {
+                System.arraycopy(frame.array(), offset, dst, dstOffset, length);
+            } else {
+                frame.clear();
+                frame.position(offset);
+                frame.get(dst, dstOffset, length);
+            }
+        }
+
+        // Fill the page with block blockId from disk
+        public boolean readFrom(int blockId){
+            if (frame.hasArray()) {
+                return SysLib.rawread(blockId, frame.array()) == Kernel.OK;
+            }
+            byte[] block = stagingBlock();
+            if (SysLib.rawread(blockId, block) != Kernel.OK) {
+                return false;
+            }
+            copyIn(block, 0, 0, bSize);
+            return true;
+        }
+
+        // Write the page to block blockId on disk
+        public boolean writeTo(int blockId){
+            if (frame.hasArray()) {
+                return SysLib.rawwrite(blockId, frame.array()) == Kernel.OK;
+            }
+            byte[] block = stagingBlock();
+            copyOut(0, block, 0, bSize);
+            return SysLib.rawwrite(blockId, block) == Kernel.OK;
+        }
+
+        // A read-only view of part of the page, independent of frame's position and limit
+        public ByteBuffer view(int offset, int length){
+            ByteBuffer view = frame.asReadOnlyBuffer();
+            view.limit(offset + length).position(offset);
+            return view.slice();
+        }
+    }
+}
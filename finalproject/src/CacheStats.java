@@ -0,0 +1,92 @@
+/**
+ * CacheStats is a snapshot of the Cache's counters, split by the class of block involved: the
+ * superblock, the inode region (counting the free-space bitmap after it), or everything after that
+ * (data and extent tree blocks).  Like DiskStats it is a struct-like class; SysLib.cacheStats( ) fills
+ * one in for user threads, and the Loader's "c" command prints it.
+ *
+ * Evictions are further split by the victim's (reference, dirty) bits at the time it was chosen,
+ * the four classes of the enhanced second-chance algorithm: 00 is the best victim, 11 the worst.
+ */
+public class CacheStats {
+    public final static int SUPERBLOCK = 0;         // block classes
+    public final static int INODES = 1;
+    public final static int DATA = 2;
+    public final static int CLASSES = 3;
+
+    public int pages;                               // cache size in blocks
+    public int dirtyPages;                          // pages dirty right now
+
+    public long[] hits = new long[CLASSES];          // accesses served from the cache
+    public long[] misses = new long[CLASSES];        // accesses that had to read (or allocate) a page
+    public long[][] evictions = new long[CLASSES][4]; // victims, by class and then by (ref << 1 | dirty)
+    public long[] writeBacks = new long[CLASSES];    // dirty victims written back before reuse
+    public long[] cleanings = new long[CLASSES];     // dirty pages written back by sync or the cleaner
+
+    public long victimSearches;                     // times the replacement policy chose a victim
+    public long pagesScanned;                       // pages it looked at doing so
+
+    public long prefetched;                         // blocks read ahead
+    public long prefetchHits;                       // ... and later used
+    public long prefetchWasted;                     // ... and evicted unread
+
+    // Block class of blockId, given the first block after the inode region
+    public static int classOf( int blockId, int dataStart ) {
+        return ( blockId == 0 ) ? SUPERBLOCK : ( blockId < dataStart ) ? INODES : DATA;
+    }
+
+    public void copyFrom( CacheStats other ) {
+        pages = other.pages;
+        dirtyPages = other.dirtyPages;
+        System.arraycopy( other.hits, 0, hits, 0, CLASSES );
+        System.arraycopy( other.misses, 0, misses, 0, CLASSES );
+        for ( int c = 0; c < CLASSES; ++c ) {
+            System.arraycopy( other.evictions[c], 0, evictions[c], 0, 4 );
+        }
+        System.arraycopy( other.writeBacks, 0, writeBacks, 0, CLASSES );
+        System.arraycopy( other.cleanings, 0, cleanings, 0, CLASSES );
+        victimSearches = other.victimSearches;
+        pagesScanned = other.pagesScanned;
+        prefetched = other.prefetched;
+        prefetchHits = other.prefetchHits;
+        prefetchWasted = other.prefetchWasted;
+    }
+
+    public long getHits( ) {
+        return hits[SUPERBLOCK] + hits[INODES] + hits[DATA];
+    }
+
+    public long getMisses( ) {
+        return misses[SUPERBLOCK] + misses[INODES] + misses[DATA];
+    }
+
+    // Average pages looked at per victim search
+    public double getAverageScan( ) {
+        return victimSearches == 0 ? 0.0 : (double)pagesScanned / victimSearches;
+    }
+
+    @Override
+    public String toString( ) {
+        final String[] names = { "superblock", "inodes", "data" };
+        StringBuilder s = new StringBuilder( );
+        s.append( String.format( "cache %d pages, %d dirty, hit rate %.1f%%%n", pages, dirtyPages,
+                                 hitRate( getHits( ), getMisses( ) ) ) );
+        s.append( String.format( "%-10s %10s %10s %6s %8s %8s %8s %8s %10s %10s%n", "class", "hits",
+                                 "misses", "hit%", "evict00", "evict01", "evict10", "evict11",
+                                 "writeback", "cleaned" ) );
+        for ( int c = 0; c < CLASSES; ++c ) {
+            s.append( String.format( "%-10s %10d %10d %6.1f %8d %8d %8d %8d %10d %10d%n", names[c],
+                                     hits[c], misses[c], hitRate( hits[c], misses[c] ),
+                                     evictions[c][0], evictions[c][1], evictions[c][2],
+                                     evictions[c][3], writeBacks[c], cleanings[c] ) );
+        }
+        s.append( String.format( "victim searches %d, avg scan %.2f pages%n", victimSearches,
+                                 getAverageScan( ) ) );
+        s.append( String.format( "read-ahead %d blocks, %d hit, %d wasted%n", prefetched,
+                                 prefetchHits, prefetchWasted ) );
+        return s.toString( );
+    }
+
+    private static double hitRate( long hits, long misses ) {
+        return ( hits + misses == 0 ) ? 0.0 : 100.0 * hits / ( hits + misses );
+    }
+}
@@ -73,7 +73,7 @@ public class Directory {
                    length = fnsizes[i];
                    name = new String(names, offset, length);
                    name.getChars(0, length, fnames[i], 0);
-                   map.put(name, i);
+                   map.put(name, (short)i);
 
                    // advance offset w/in names by the appropriate amount to reach the next stored filename
                    // (ignores 0-length fnsizes because they don't actually matter)
@@ -3,162 +3,676 @@
 // (powered by Fernflower decompiler)
 //
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.LinkedList;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements DiskDevice {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+
+    // Default geometry and timing (ms)
+    public static final int defaultTrackSize = 10;
+    public static final int defaultTransferTime = 20;
+    public static final int defaultDelayPerTrack = 1;
+
+    private final int trackSize;
+    private final int transferTime;
+    private final int delayPerTrack;
+    private final int runTransferTime;      // per extra block of a run once the head is positioned
     private int diskSize;
     private byte[] data;
-    private int command;
-    private final int IDLE = 0;
-    private final int READ = 1;
-    private final int WRITE = 2;
-    private final int SYNC = 3;
-    private boolean readyBuffer;
-    private byte[] buffer;
     private int currentBlockId;
     private int targetBlockId;
 
-    public Disk(int var1) {
-        this.diskSize = var1 > 0 ? var1 : 1;
-        this.data = new byte[this.diskSize * 512];
-        this.command = 0;
-        this.readyBuffer = false;
-        this.buffer = null;
+    // Bounded queue of requests waiting for service.  Submitters that find it full are counted in
+    // slotWaiters and receive one disk interrupt each as requests are retired.
+    private final int queueDepth = 16;
+    private LinkedList<DiskRequest> pending;
+    private int nextTag;
+    private int slotWaiters;
+
+    // Ordering of queued requests, plus counters for judging how well it is doing
+    private DiskPolicy policy;
+    private DiskStats stats;
+
+    // Memory-mapped backing store.  The DISK file is mapped in page-sized chunks so that a SYNC
+    // only has to force() the chunks that were actually written since the last SYNC.
+    private final int pageBlocks = 8;       // blocks per mapped page (8 * 512 bytes = 4 KB)
+    private boolean mapped;
+    private MappedByteBuffer[] pages;
+    private boolean[] dirtyPages;
+
+    // In-memory backing store journal.  Blocks written since the last SYNC are marked in dirtyBlocks
+    // and a SYNC writes just those blocks back to the DISK file with positioned writes.
+    private FileChannel diskFile;
+    private BitSet dirtyBlocks;
+
+    // Optional background flushing: when the queue has been empty for idleFlushDelay ms, up to
+    // idleFlushBlocks dirty blocks are written back so that a later SYNC has less to do.
+    private final int idleFlushDelay = 100;
+    private final int idleFlushBlocks = 16;
+    private boolean idleFlush;
+
+    public Disk(int totalBlocks) {
+        this(totalBlocks, false);
+    }
+
+    /**
+     * @brief   Constructor that optionally backs the disk with a memory-mapped DISK file
+     *          instead of loading the whole image into memory and rewriting it on every SYNC.
+     * @param totalBlocks   int, number of blocks on the disk
+     * @param mapped        boolean, true to map the DISK file rather than copy it into data[]
+     */
+    public Disk(int totalBlocks, boolean mapped) {
+        this(totalBlocks, mapped, defaultTrackSize, defaultTransferTime, defaultDelayPerTrack);
+    }
+
+    /**
+     * @brief   Constructor for a disk with its own geometry and timing.  Setting transferTime and
+     *          delayPerTrack to 0 keeps the DISK file but removes all simulated latency.
+     * @param totalBlocks   int, number of blocks on the disk
+     * @param mapped        boolean, true to map the DISK file rather than copy it into data[]
+     * @param trackSize     int, blocks per track (at least 1)
+     * @param transferTime  int, ms to position onto and transfer one block
+     * @param delayPerTrack int, extra ms per track the head moves
+     */
+    public Disk(int totalBlocks, boolean mapped, int trackSize, int transferTime, int delayPerTrack) {
+        this.trackSize = trackSize > 0 ? trackSize : defaultTrackSize;
+        this.transferTime = Math.max(transferTime, 0);
+        this.delayPerTrack = Math.max(delayPerTrack, 0);
+        this.runTransferTime = this.transferTime / 10;
+        this.diskSize = totalBlocks > 0 ? totalBlocks : 1;
+        this.pending = new LinkedList<DiskRequest>();
+        this.nextTag = 0;
+        this.slotWaiters = 0;
+        this.policy = new DiskPolicy.Fifo();
+        this.stats = new DiskStats();
         this.currentBlockId = 0;
         this.targetBlockId = 0;
+        this.mapped = mapped && mapDisk();
+
+        if (this.mapped) {
+            return;
+        }
 
+        this.data = new byte[this.diskSize * blockSize];
+        this.dirtyBlocks = new BitSet(this.diskSize);
         try {
-            FileInputStream var2 = new FileInputStream("DISK");
-            int var3 = var2.available() < this.data.length ? var2.available() : this.data.length;
-            var2.read(this.data, 0, var3);
-            var2.close();
-        } catch (FileNotFoundException var4) {
+            FileInputStream ifstream = new FileInputStream("DISK");
+            int readableSize = ifstream.available() < this.data.length ? ifstream.available() : this.data.length;
+            ifstream.read(this.data, 0, readableSize);
+            ifstream.close();
+        } catch (FileNotFoundException e) {
             SysLib.cerr("threadOS: DISK created\n");
-        } catch (IOException var5) {
-            SysLib.cerr(var5.toString() + "\n");
+        } catch (IOException e) {
+            SysLib.cerr(e.toString() + "\n");
+        }
+
+        // Keep the file open for positioned writes at SYNC; without it, SYNC rewrites the whole image
+        try {
+            RandomAccessFile raf = new RandomAccessFile("DISK", "rw");
+            if (raf.length() < this.data.length) {
+                raf.setLength(this.data.length);
+            }
+            this.diskFile = raf.getChannel();
+        } catch (IOException e) {
+            SysLib.cerr(e.toString() + "\n");
+            this.diskFile = null;
         }
+    }
 
+    /**
+     * @brief   Turn background flushing of dirty blocks on or off
+     * @param idleFlush     boolean, true to trickle dirty blocks out whenever the queue is idle
+     */
+    public synchronized void setIdleFlush(boolean idleFlush) {
+        this.idleFlush = idleFlush;
+        this.notify();
     }
 
-    public synchronized boolean read(int var1, byte[] var2) {
-        if (var1 >= 0 && var1 <= this.diskSize) {
-            if (this.command == 0 && !this.readyBuffer) {
-                this.buffer = var2;
-                this.targetBlockId = var1;
-                this.command = 1;
-                this.notify();
-                return true;
-            } else {
-                return false;
+    /**
+     * @brief   Map the DISK file into memory, growing it to the full disk size if necessary
+     * @return  mapped      boolean, false if the file could not be mapped (caller falls back to data[])
+     */
+    private boolean mapDisk() {
+        try {
+            File file = new File("DISK");
+            if (!file.exists()) {
+                SysLib.cerr("threadOS: DISK created\n");
             }
-        } else {
-            SysLib.cerr("threadOS: a wrong blockId for read\n");
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            long length = (long) this.diskSize * blockSize;
+            if (channel.size() < length) {
+                raf.setLength(length);
+            }
+
+            int pageCount = (this.diskSize + pageBlocks - 1) / pageBlocks;
+            this.pages = new MappedByteBuffer[pageCount];
+            this.dirtyPages = new boolean[pageCount];
+            for (int i = 0; i < pageCount; ++i) {
+                long position = (long) i * pageBlocks * blockSize;
+                long size = Math.min((long) pageBlocks * blockSize, length - position);
+                this.pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            }
+
+            // The mappings remain valid after the channel is closed
+            raf.close();
+            return true;
+        } catch (IOException e) {
+            SysLib.cerr("threadOS: DISK could not be mapped (" + e.toString() + "), loading it instead\n");
+            this.pages = null;
+            this.dirtyPages = null;
             return false;
         }
     }
 
-    public synchronized boolean write(int var1, byte[] var2) {
-        if (var1 >= 0 && var1 <= this.diskSize) {
-            if (this.command == 0 && !this.readyBuffer) {
-                this.buffer = var2;
-                this.targetBlockId = var1;
-                this.command = 2;
-                this.notify();
-                return true;
-            } else {
-                return false;
+    /**
+     * @brief   Queue a read of one block into buffer
+     * @param blockId   int, block to read
+     * @param buffer    byte[] to receive the block
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest read(int blockId, byte[] buffer) {
+        return this.submit(DiskRequest.READ, blockId, buffer);
+    }
+
+    /**
+     * @brief   Queue a write of one block from buffer
+     * @param blockId   int, block to write
+     * @param buffer    byte[] holding the block's new contents
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest write(int blockId, byte[] buffer) {
+        return this.submit(DiskRequest.WRITE, blockId, buffer);
+    }
+
+    /**
+     * @brief   Queue a SYNC of the backing store to the DISK file.  It is serviced after every
+     *          request queued before it.
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest sync() {
+        return this.submit(DiskRequest.SYNC, this.currentBlockId, null);
+    }
+
+    /**
+     * @brief   Queue a read of several blocks in one command.  Block blockIds[i] lands at
+     *          buffer[i * blockSize]; the Disk services the blocks in track order.
+     * @param blockIds  int[] of blocks to read
+     * @param buffer    byte[] of at least blockIds.length * blockSize bytes
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest readv(int[] blockIds, byte[] buffer) {
+        return this.submitVector(DiskRequest.READV, blockIds, buffer);
+    }
+
+    /**
+     * @brief   Queue a write of several blocks in one command.  Block blockIds[i] is taken from
+     *          buffer[i * blockSize]; if a block is listed twice, the later copy wins.
+     * @param blockIds  int[] of blocks to write
+     * @param buffer    byte[] of at least blockIds.length * blockSize bytes
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest writev(int[] blockIds, byte[] buffer) {
+        return this.submitVector(DiskRequest.WRITEV, blockIds, buffer);
+    }
+
+    /**
+     * @brief   Queue a read of buffer.length / blockSize consecutive blocks as one run.  The head is
+     *          positioned once and the whole span is copied at sequential-transfer cost.
+     * @param blockId   int, first block of the run
+     * @param buffer    byte[] whose length is a multiple of blockSize
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest readRun(int blockId, byte[] buffer) {
+        return this.submitRun(DiskRequest.READRUN, blockId, buffer);
+    }
+
+    /**
+     * @brief   Queue a write of buffer.length / blockSize consecutive blocks as one run
+     * @param blockId   int, first block of the run
+     * @param buffer    byte[] whose length is a multiple of blockSize
+     * @return request  DiskRequest to wait on, or null if the queue is full and the caller must retry
+     */
+    public DiskRequest writeRun(int blockId, byte[] buffer) {
+        return this.submitRun(DiskRequest.WRITERUN, blockId, buffer);
+    }
+
+    private synchronized DiskRequest submitRun(int command, int blockId, byte[] buffer) {
+        int count = buffer.length / blockSize;
+        DiskRequest request = new DiskRequest(this.newTag(), command, blockId, count, buffer);
+
+        if (count == 0 || buffer.length % blockSize != 0 || blockId < 0 || blockId + count > this.diskSize) {
+            SysLib.cerr("threadOS: a wrong run for " + (command == DiskRequest.READRUN ? "read" : "write") + "\n");
+            request.complete(false);
+            return request;
+        }
+
+        return this.enqueue(request);
+    }
+
+    private synchronized DiskRequest submit(int command, int blockId, byte[] buffer) {
+        DiskRequest request = new DiskRequest(this.newTag(), command, blockId, buffer);
+
+        if (command != DiskRequest.SYNC && (blockId < 0 || blockId >= this.diskSize)) {
+            SysLib.cerr("threadOS: a wrong blockId for " + (command == DiskRequest.READ ? "read" : "write") + "\n");
+            request.complete(false);
+            return request;
+        }
+
+        return this.enqueue(request);
+    }
+
+    private synchronized DiskRequest submitVector(int command, int[] blockIds, byte[] buffer) {
+        DiskRequest request = new DiskRequest(this.newTag(), command, blockIds, buffer);
+
+        boolean valid = buffer.length >= blockIds.length * blockSize;
+        for (int i = 0; i < blockIds.length && valid; ++i) {
+            valid = blockIds[i] >= 0 && blockIds[i] < this.diskSize;
+        }
+        if (!valid || blockIds.length == 0) {
+            if (!valid) {
+                SysLib.cerr("threadOS: a wrong blockId for " + (command == DiskRequest.READV ? "readv" : "writev") + "\n");
             }
-        } else {
-            SysLib.cerr("threadOS: a wrong blockId for write\n");
-            return false;
+            request.complete(valid);
+            return request;
         }
+
+        return this.enqueue(request);
     }
 
-    public synchronized boolean sync() {
-        if (this.command == 0 && !this.readyBuffer) {
-            this.command = 3;
-            this.notify();
-            return true;
-        } else {
-            return false;
+    // Tags double as the kernel's asynchronous I/O tokens, so they must stay non-negative
+    private synchronized int newTag() {
+        int tag = this.nextTag;
+        this.nextTag = (this.nextTag + 1) & Integer.MAX_VALUE;
+        return tag;
+    }
+
+    private synchronized DiskRequest enqueue(DiskRequest request) {
+        if (this.pending.size() >= queueDepth) {
+            // The caller will sleep until a slot is handed back by finishRequest()
+            ++this.slotWaiters;
+            return null;
         }
+
+        this.pending.addLast(request);
+        this.stats.queueDepth = this.pending.size();
+        this.stats.maxQueueDepth = Math.max(this.stats.maxQueueDepth, this.stats.queueDepth);
+        this.stats.queueDepthSum += this.stats.queueDepth;
+        ++this.stats.submissions;
+        this.notify();
+        return request;
     }
 
-    public synchronized boolean testAndResetReady() {
-        if (this.command == 0 && this.readyBuffer) {
-            this.readyBuffer = false;
-            return true;
-        } else {
-            return false;
+    /**
+     * @brief   Select the order in which queued requests are serviced
+     * @param policy    DiskPolicy to consult from now on; null is ignored
+     */
+    public synchronized void setPolicy(DiskPolicy policy) {
+        if (policy != null) {
+            this.policy = policy;
         }
     }
 
-    public synchronized boolean testReady() {
-        return this.command == 0 && this.readyBuffer;
+    public synchronized DiskPolicy getPolicy() {
+        return this.policy;
     }
 
-    private synchronized void waitCommand() {
-        for(; this.command == 0; this.readyBuffer = false) {
+    /**
+     * @brief   Take a snapshot of the disk's counters
+     * @return  stats   DiskStats, a copy that later activity does not change
+     */
+    public synchronized DiskStats getStats() {
+        DiskStats snapshot = new DiskStats();
+        snapshot.copyFrom(this.stats);
+        return snapshot;
+    }
+
+    /**
+     * @brief   Wait for and remove the next request to service, as chosen by the policy.
+     *          Requests behind a pending SYNC are held back until the SYNC is serviced, and a
+     *          request is never serviced ahead of an older one for the same block.
+     * @return  request     DiskRequest, the next request to service, or null if idle flushing
+     *                      is on and the queue stayed empty for idleFlushDelay ms
+     */
+    private synchronized DiskRequest nextRequest() {
+        while (this.pending.isEmpty()) {
             try {
-                this.wait();
-            } catch (InterruptedException var2) {
-                SysLib.cerr(var2.toString() + "\n");
+                if (this.idleFlush && this.hasDirtyData()) {
+                    this.wait(idleFlushDelay);
+                    if (this.pending.isEmpty()) {
+                        return null;    // idle: the caller flushes a few dirty blocks
+                    }
+                } else {
+                    this.wait();
+                }
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+        }
+
+        // Only requests ahead of the first SYNC may be reordered
+        int window = 0;
+        while (window < this.pending.size() && this.pending.get(window).command != DiskRequest.SYNC) {
+            ++window;
+        }
+
+        int index = 0;
+        if (window > 1) {
+            index = this.policy.select(this.pending, window, this.currentBlockId);
+            if (index < 0 || index >= window) {
+                index = 0;
+            }
+            // Keep requests for the same block in arrival order
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (int i = 0; i < index; ++i) {
+                    if (this.pending.get(i).overlaps(this.pending.get(index))) {
+                        index = i;
+                        moved = true;
+                        break;
+                    }
+                }
             }
         }
 
+        DiskRequest request = this.pending.remove(index);
+        long waited = System.currentTimeMillis() - request.submitTime;
+        this.stats.totalWaitTime += waited;
+        this.stats.maxWaitTime = Math.max(this.stats.maxWaitTime, waited);
+        this.stats.queueDepth = this.pending.size();
+        return request;
     }
 
     private void seek() {
+        this.seek(1);
+    }
 
-        int var1 = 20 + 1 * Math.abs(this.targetBlockId / 10 - this.currentBlockId / 10);
+    /**
+     * @brief   Position the head over targetBlockId and transfer count consecutive blocks.  The first
+     *          block pays the usual transferTime plus track delay; every further block only pays
+     *          runTransferTime, plus delayPerTrack whenever the run crosses into the next track.
+     * @param count     int, number of consecutive blocks in the transfer (at least 1)
+     */
+    private void seek(int count) {
 
-        try {
-            Thread.sleep((long)var1);
-        } catch (InterruptedException var3) {
-            SysLib.cerr(var3.toString() + "\n");
+        int endBlockId = this.targetBlockId + count - 1;
+        int tracks = Math.abs(this.targetBlockId / trackSize - this.currentBlockId / trackSize)
+                   + (endBlockId / trackSize - this.targetBlockId / trackSize);
+        int seekTime = transferTime + delayPerTrack * tracks + runTransferTime * (count - 1);
+        synchronized (this) {
+            this.stats.seekDistance += tracks;
+        }
+
+        if (seekTime > 0) {
+            try {
+                Thread.sleep((long)seekTime);
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+        }
+
+
+        synchronized (this) {
+            this.currentBlockId = endBlockId;
+        }
+    }
+
+    /**
+     * @brief   Wake the request's own waiter, then raise a disk interrupt if a submitter is
+     *          sleeping for a free queue slot.
+     * @param request   DiskRequest, the request just serviced
+     */
+    private void finishRequest(DiskRequest request) {
+        request.complete(true);
+
+        boolean slotWaiter;
+        synchronized (this) {
+            ++this.stats.commands[request.command];
+            int blocks = (request.blockIds != null) ? request.blockIds.length : request.count;
+            if (request.command == DiskRequest.READ || request.command == DiskRequest.READV
+                    || request.command == DiskRequest.READRUN) {
+                this.stats.blocksRead += blocks;
+            } else if (request.command != DiskRequest.SYNC) {
+                this.stats.blocksWritten += blocks;
+            }
+            this.stats.recordLatency(System.currentTimeMillis() - request.submitTime);
+
+            slotWaiter = this.slotWaiters > 0;
+            if (slotWaiter) {
+                --this.slotWaiters;
+            }
+        }
+        if (slotWaiter) {
+            SysLib.disk();
+        }
+    }
+
+    /**
+     * @brief   Copy count consecutive blocks from the backing store into buffer
+     * @param blockId   int, first block to copy out
+     * @param count     int, number of blocks
+     * @param buffer    byte[] receiving count * blockSize bytes at offset
+     * @param offset    int, position in buffer of the first block's first byte
+     */
+    private void readBlocks(int blockId, int count, byte[] buffer, int offset) {
+        if (this.mapped) {
+            // A run may span several mapped pages
+            while (count > 0) {
+                MappedByteBuffer page = this.pages[blockId / pageBlocks];
+                int inPage = Math.min(count, pageBlocks - blockId % pageBlocks);
+                page.position((blockId % pageBlocks) * blockSize);
+                page.get(buffer, offset, inPage * blockSize);
+                blockId += inPage;
+                offset += inPage * blockSize;
+                count -= inPage;
+            }
+        } else {
+            System.arraycopy(this.data, blockId * blockSize, buffer, offset, count * blockSize);
+        }
+    }
+
+    /**
+     * @brief   Copy count consecutive blocks from buffer into the backing store
+     * @param blockId   int, first block to overwrite
+     * @param count     int, number of blocks
+     * @param buffer    byte[] holding count * blockSize bytes at offset
+     * @param offset    int, position in buffer of the first block's first byte
+     */
+    private void writeBlocks(int blockId, int count, byte[] buffer, int offset) {
+        if (this.mapped) {
+            while (count > 0) {
+                int pageIndex = blockId / pageBlocks;
+                MappedByteBuffer page = this.pages[pageIndex];
+                int inPage = Math.min(count, pageBlocks - blockId % pageBlocks);
+                page.position((blockId % pageBlocks) * blockSize);
+                page.put(buffer, offset, inPage * blockSize);
+                this.dirtyPages[pageIndex] = true;
+                blockId += inPage;
+                offset += inPage * blockSize;
+                count -= inPage;
+            }
+        } else {
+            System.arraycopy(buffer, offset, this.data, blockId * blockSize, count * blockSize);
+            this.dirtyBlocks.set(blockId, blockId + count);
+        }
+    }
+
+    private boolean hasDirtyData() {
+        if (this.mapped) {
+            for (int i = 0; i < this.dirtyPages.length; ++i) {
+                if (this.dirtyPages[i]) {
+                    return true;
+                }
+            }
+            return false;
         }
+        return this.diskFile != null && !this.dirtyBlocks.isEmpty();
+    }
 
+    /**
+     * @brief   Persist the backing store to the DISK file.  Only what was written since the last
+     *          sync goes out: a mapped disk forces its dirty pages, an in-memory disk writes its
+     *          dirty blocks in place.  If the DISK file could not be kept open, the whole image is
+     *          rewritten instead.
+     */
+    private void syncData() {
+        if (!this.mapped && this.diskFile == null) {
+            try {
+                FileOutputStream ofstream = new FileOutputStream("DISK");
+                ofstream.write(this.data);
+                ofstream.close();
+            } catch (FileNotFoundException e) {
+                SysLib.cerr(e.toString());
+            } catch (IOException e) {
+                SysLib.cerr(e.toString());
+            }
+            return;
+        }
 
-        this.currentBlockId = this.targetBlockId;
+        this.flushDirty(this.diskSize);
+    }
+
+    /**
+     * @brief   Write back up to maxBlocks dirty blocks (rounded up to whole pages when mapped),
+     *          lowest block numbers first.  Consecutive dirty blocks go out in a single write.
+     * @param maxBlocks     int, upper bound on blocks written back by this call
+     */
+    private void flushDirty(int maxBlocks) {
+        if (this.mapped) {
+            for (int i = 0; i < this.pages.length && maxBlocks > 0; ++i) {
+                if (this.dirtyPages[i]) {
+                    this.pages[i].force();
+                    this.dirtyPages[i] = false;
+                    maxBlocks -= pageBlocks;
+                }
+            }
+            return;
+        }
+
+        try {
+            int first = this.dirtyBlocks.nextSetBit(0);
+            while (first >= 0 && maxBlocks > 0) {
+                int end = this.dirtyBlocks.nextClearBit(first);
+                end = Math.min(end, first + maxBlocks);
+
+                ByteBuffer run = ByteBuffer.wrap(this.data, first * blockSize, (end - first) * blockSize);
+                long position = (long) first * blockSize;
+                while (run.hasRemaining()) {
+                    position += this.diskFile.write(run, position);
+                }
+                this.dirtyBlocks.clear(first, end);
+
+                maxBlocks -= end - first;
+                first = this.dirtyBlocks.nextSetBit(end);
+            }
+        } catch (IOException e) {
+            SysLib.cerr(e.toString() + "\n");
+        }
     }
 
-    private synchronized void finishCommand() {
-        this.command = 0;
-        this.readyBuffer = true;
-        SysLib.disk();
+    /**
+     * @brief   Service a READV or WRITEV: visit its blocks in ascending track order starting from
+     *          the first block at or beyond the head, wrapping around once (a single C-LOOK sweep).
+     *          Consecutive block numbers are charged as runs.  Repeated blocks keep their relative
+     *          order so the last write of a block wins.
+     * @param request   DiskRequest, the vectored request
+     */
+    private void transferVector(DiskRequest request) {
+        int[] blockIds = request.blockIds;
+        int count = blockIds.length;
+
+        // Stable insertion sort of indices by block number
+        int[] order = new int[count];
+        for (int i = 0; i < count; ++i) {
+            int j = i;
+            while (j > 0 && blockIds[order[j - 1]] > blockIds[i]) {
+                order[j] = order[j - 1];
+                --j;
+            }
+            order[j] = i;
+        }
+
+        // Start the sweep at the first block at or beyond the head
+        int first = 0;
+        while (first < count && blockIds[order[first]] < this.currentBlockId) {
+            ++first;
+        }
+
+        // Each stretch of consecutive block numbers is transferred as one run
+        int k = 0;
+        while (k < count) {
+            int runLength = 1;
+            while (k + runLength < count
+                   && blockIds[order[(first + k + runLength) % count]]
+                      == blockIds[order[(first + k + runLength - 1) % count]] + 1) {
+                ++runLength;
+            }
+
+            this.targetBlockId = blockIds[order[(first + k) % count]];
+            this.seek(runLength);
+            for (int r = 0; r < runLength; ++r) {
+                int i = order[(first + k + r) % count];
+                if (request.command == DiskRequest.READV) {
+                    this.readBlocks(blockIds[i], 1, request.buffer, i * blockSize);
+                } else {
+                    this.writeBlocks(blockIds[i], 1, request.buffer, i * blockSize);
+                }
+            }
+            k += runLength;
+        }
     }
 
     public void run() {
         while(true) {
-            this.waitCommand();
-            this.seek();
-            switch(this.command) {
-                case 1:
-                    System.arraycopy(this.data, this.targetBlockId * 512, this.buffer, 0, 512);
+            long idleSince = System.currentTimeMillis();
+            DiskRequest request = this.nextRequest();
+            long busySince = System.currentTimeMillis();
+            synchronized (this) {
+                this.stats.idleTime += busySince - idleSince;
+            }
+            if (request == null) {
+                this.flushDirty(idleFlushBlocks);
+                continue;
+            }
+            switch(request.command) {
+                case DiskRequest.READ:
+                case DiskRequest.READRUN:
+                    this.targetBlockId = request.blockId;
+                    this.seek(request.count);
+                    this.readBlocks(request.blockId, request.count, request.buffer, 0);
                     break;
-                case 2:
-                    System.arraycopy(this.buffer, 0, this.data, this.targetBlockId * 512, 512);
+                case DiskRequest.WRITE:
+                case DiskRequest.WRITERUN:
+                    this.targetBlockId = request.blockId;
+                    this.seek(request.count);
+                    this.writeBlocks(request.blockId, request.count, request.buffer, 0);
+                    break;
+                case DiskRequest.SYNC:
+                    this.seek();
+                    this.syncData();
+                    break;
+                case DiskRequest.READV:
+                case DiskRequest.WRITEV:
+                    this.transferVector(request);
                     break;
-                case 3:
-                    try {
-                        FileOutputStream var1 = new FileOutputStream("DISK");
-                        var1.write(this.data);
-                        var1.close();
-                    } catch (FileNotFoundException var2) {
-                        SysLib.cerr(var2.toString());
-                    } catch (IOException var3) {
-                        SysLib.cerr(var3.toString());
-                    }
             }
 
-            this.finishCommand();
+            synchronized (this) {
+                this.stats.busyTime += System.currentTimeMillis() - busySince;
+            }
+            this.finishRequest(request);
         }
     }
 }
@@ -0,0 +1,35 @@
+/**
+ * The DiskDevice interface is everything the Kernel needs from a disk: queueing block commands,
+ * choosing how queued commands are ordered, and reading back the device's counters.  Kernel BOOT
+ * picks the implementation: Disk, which simulates seek and transfer latency over the DISK file
+ * (with configurable geometry), or RamDisk, which services every command immediately from memory.
+ *
+ * Every command returns a DiskRequest to wait on, or null if the device cannot accept another
+ * command yet; in that case the caller sleeps until a disk interrupt and tries again.
+ */
+public interface DiskDevice {
+
+    DiskRequest read( int blockId, byte[] buffer );
+
+    DiskRequest write( int blockId, byte[] buffer );
+
+    DiskRequest sync( );
+
+    DiskRequest readv( int[] blockIds, byte[] buffer );
+
+    DiskRequest writev( int[] blockIds, byte[] buffer );
+
+    DiskRequest readRun( int blockId, byte[] buffer );
+
+    DiskRequest writeRun( int blockId, byte[] buffer );
+
+    void setPolicy( DiskPolicy policy );
+
+    DiskPolicy getPolicy( );
+
+    // A snapshot of the device's counters
+    DiskStats getStats( );
+
+    // Begin servicing commands
+    void start( );
+}
@@ -0,0 +1,139 @@
+import java.util.List;
+
+/**
+ * A DiskPolicy decides which of the Disk's queued requests is serviced next.  The Disk only
+ * offers a policy the requests queued ahead of the first pending SYNC, and never lets a request
+ * overtake an earlier one for the same block, so every policy is free to reorder what it sees.
+ *
+ * Four policies are provided: FIFO (arrival order), SSTF (shortest seek first), SCAN (the
+ * elevator, reversing once nothing is left ahead of the head) and C-LOOK (one-way sweeps that
+ * jump back to the lowest pending block).
+ */
+public interface DiskPolicy {
+
+    /**
+     * @brief   Choose the next request to service
+     * @param pending       List of queued requests, oldest first
+     * @param count         int, only the first count entries of pending may be chosen (count >= 1)
+     * @param headBlockId   int, block the head is currently positioned over
+     * @return  index       int, index into pending of the request to service next
+     */
+    int select( List<DiskRequest> pending, int count, int headBlockId );
+
+    /**
+     * @brief   Look up a policy by its boot-option name
+     * @param name      String, one of "fifo", "sstf", "scan" or "clook"
+     * @return  policy  DiskPolicy, or null if the name is not recognized
+     */
+    static DiskPolicy forName( String name ) {
+        switch ( name.toLowerCase( ) ) {
+            case "fifo":  return new Fifo( );
+            case "sstf":  return new Sstf( );
+            case "scan":  return new Scan( );
+            case "clook": return new CLook( );
+            default:      return null;
+        }
+    }
+
+    /**
+     * First come, first served: the order the Disk has always used.
+     */
+    class Fifo implements DiskPolicy {
+        public int select( List<DiskRequest> pending, int count, int headBlockId ) {
+            return 0;
+        }
+
+        public String toString( ) {
+            return "FIFO";
+        }
+    }
+
+    /**
+     * Shortest seek time first; ties go to the older request.
+     */
+    class Sstf implements DiskPolicy {
+        public int select( List<DiskRequest> pending, int count, int headBlockId ) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for ( int i = 0; i < count; ++i ) {
+                int distance = Math.abs( pending.get( i ).blockId - headBlockId );
+                if ( distance < bestDistance ) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        public String toString( ) {
+            return "SSTF";
+        }
+    }
+
+    /**
+     * Elevator: keep moving in the current direction, serving the nearest request ahead of the
+     * head, and reverse only when nothing is left in that direction.
+     */
+    class Scan implements DiskPolicy {
+        private boolean ascending = true;
+
+        public int select( List<DiskRequest> pending, int count, int headBlockId ) {
+            int next = nearestAhead( pending, count, headBlockId, ascending );
+            if ( next == -1 ) {
+                ascending = !ascending;
+                next = nearestAhead( pending, count, headBlockId, ascending );
+            }
+            return next;
+        }
+
+        private static int nearestAhead( List<DiskRequest> pending, int count, int headBlockId,
+                                         boolean ascending ) {
+            int best = -1;
+            int bestDistance = Integer.MAX_VALUE;
+            for ( int i = 0; i < count; ++i ) {
+                int distance = pending.get( i ).blockId - headBlockId;
+                if ( !ascending ) {
+                    distance = -distance;
+                }
+                if ( distance >= 0 && distance < bestDistance ) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        public String toString( ) {
+            return "SCAN";
+        }
+    }
+
+    /**
+     * Circular LOOK: sweep upward only; once nothing is left above the head, jump back to the
+     * lowest pending block and sweep upward again.
+     */
+    class CLook implements DiskPolicy {
+        public int select( List<DiskRequest> pending, int count, int headBlockId ) {
+            int next = -1;
+            int nextBlock = Integer.MAX_VALUE;
+            int lowest = 0;
+            int lowestBlock = Integer.MAX_VALUE;
+            for ( int i = 0; i < count; ++i ) {
+                int blockId = pending.get( i ).blockId;
+                if ( blockId >= headBlockId && blockId < nextBlock ) {
+                    nextBlock = blockId;
+                    next = i;
+                }
+                if ( blockId < lowestBlock ) {
+                    lowestBlock = blockId;
+                    lowest = i;
+                }
+            }
+            return ( next != -1 ) ? next : lowest;
+        }
+
+        public String toString( ) {
+            return "C-LOOK";
+        }
+    }
+}
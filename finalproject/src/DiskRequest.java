@@ -0,0 +1,126 @@
+/**
+ * A DiskRequest is one tagged command sitting in the Disk's request queue.  Each request carries
+ * its own buffer and completion state, so the thread that submitted it can sleep until exactly
+ * this request has been serviced instead of waiting on the disk as a whole.
+ */
+public class DiskRequest {
+    // Command values
+    public final static int READ  = 1;
+    public final static int WRITE = 2;
+    public final static int SYNC  = 3;
+    public final static int READV = 4;     // read a list of blocks into one contiguous buffer
+    public final static int WRITEV= 5;     // write a list of blocks from one contiguous buffer
+    public final static int READRUN = 6;   // read count consecutive blocks starting at blockId
+    public final static int WRITERUN= 7;   // write count consecutive blocks starting at blockId
+
+    public final int tag;               // sequence number assigned by the Disk on submission
+    public final int command;           // READ, WRITE, SYNC, READV, WRITEV, READRUN or WRITERUN
+    public final int blockId;           // target block (ignored for SYNC; lowest block for READV/WRITEV)
+    public final int count;             // consecutive blocks from blockId (1 unless READRUN/WRITERUN)
+    public final int[] blockIds;        // all target blocks of READV/WRITEV, null otherwise
+    public final byte[] buffer;         // source or destination of the transfer
+    public final long submitTime;       // System.currentTimeMillis( ) when queued
+
+    private boolean done = false;
+    private boolean succeeded = false;
+
+    public DiskRequest( int tag, int command, int blockId, byte[] buffer ) {
+        this( tag, command, blockId, 1, buffer );
+    }
+
+    public DiskRequest( int tag, int command, int blockId, int count, byte[] buffer ) {
+        this.tag = tag;
+        this.command = command;
+        this.blockId = blockId;
+        this.count = count;
+        this.blockIds = null;
+        this.buffer = buffer;
+        this.submitTime = System.currentTimeMillis( );
+    }
+
+    public DiskRequest( int tag, int command, int[] blockIds, byte[] buffer ) {
+        int lowest = Integer.MAX_VALUE;
+        for ( int i = 0; i < blockIds.length; ++i ) {
+            lowest = Math.min( lowest, blockIds[i] );
+        }
+
+        this.tag = tag;
+        this.command = command;
+        this.blockId = lowest;
+        this.count = 1;
+        this.blockIds = blockIds;
+        this.buffer = buffer;
+        this.submitTime = System.currentTimeMillis( );
+    }
+
+    /**
+     * @brief   Check whether this request transfers the given block
+     * @param id    int, block number to look for
+     * @return  touches     boolean, true if this is a READ/WRITE of id or a vector containing id
+     */
+    public boolean touches( int id ) {
+        if ( blockIds == null ) {
+            return command != SYNC && id >= blockId && id < blockId + count;
+        }
+        for ( int i = 0; i < blockIds.length; ++i ) {
+            if ( blockIds[i] == id ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @brief   Check whether this request and other transfer any block in common
+     * @param other     DiskRequest to compare against
+     * @return  overlaps    boolean, true if reordering the two could change what is read or written
+     */
+    public boolean overlaps( DiskRequest other ) {
+        if ( other.blockIds == null ) {
+            if ( other.command == SYNC ) {
+                return false;
+            }
+            for ( int id = other.blockId; id < other.blockId + other.count; ++id ) {
+                if ( touches( id ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for ( int i = 0; i < other.blockIds.length; ++i ) {
+            if ( touches( other.blockIds[i] ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @brief   Block the calling thread until the Disk has serviced this request
+     * @return  succeeded   boolean, false if the Disk rejected or failed the request
+     */
+    public synchronized boolean waitForCompletion( ) {
+        while ( !done ) {
+            try {
+                wait( );
+            } catch ( InterruptedException e ) {
+                SysLib.cerr( e.toString( ) + "\n" );
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * @brief   Mark this request as serviced and wake its waiter
+     * @param succeeded     boolean, outcome reported to the waiting thread
+     */
+    public synchronized void complete( boolean succeeded ) {
+        this.succeeded = succeeded;
+        this.done = true;
+        notifyAll( );
+    }
+
+    public synchronized boolean isDone( ) {
+        return done;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * DiskStats is a snapshot of a DiskDevice's counters: commands serviced by type, blocks moved,
+ * head travel, busy and idle time, queue depth, queue wait, and a latency histogram.  It is
+ * another struct-like class; SysLib.diskStats( ) fills one in for user threads, and the Loader's
+ * "d" command prints it.
+ *
+ * Latencies (submission to completion) are counted in power-of-two millisecond buckets:
+ * bucket 0 is under 1 ms, bucket b covers [2^(b-1), 2^b) ms, and the last bucket is open-ended.
+ */
+public class DiskStats {
+    public final static int BUCKETS = 12;           // < 1 ms, 1 ms, 2-3 ms, ... , >= 1024 ms
+
+    public long[] commands = new long[8];           // serviced requests, indexed by DiskRequest command
+    public long blocksRead;
+    public long blocksWritten;
+    public long seekDistance;                       // tracks travelled by the head
+    public long busyTime;                           // ms spent servicing requests
+    public long idleTime;                           // ms spent waiting for requests
+
+    public int queueDepth;                          // requests queued right now
+    public int maxQueueDepth;
+    public long queueDepthSum;                      // depth seen by each submission, for the average
+    public long submissions;
+
+    public long totalWaitTime;                      // ms queued before service began
+    public long maxWaitTime;
+
+    public long[] latency = new long[BUCKETS];      // histogram of submission-to-completion times
+    public long totalLatency;
+    public long maxLatency;
+    public long completed;
+
+    // Histogram bucket for a latency in ms
+    public static int bucketOf( long ms ) {
+        int bucket = 0;
+        while ( ms > 0 && bucket < BUCKETS - 1 ) {
+            ms >>= 1;
+            ++bucket;
+        }
+        return bucket;
+    }
+
+    // Records one completed request's latency
+    public void recordLatency( long ms ) {
+        ++latency[bucketOf( ms )];
+        totalLatency += ms;
+        maxLatency = Math.max( maxLatency, ms );
+        ++completed;
+    }
+
+    public void copyFrom( DiskStats other ) {
+        System.arraycopy( other.commands, 0, commands, 0, commands.length );
+        blocksRead = other.blocksRead;
+        blocksWritten = other.blocksWritten;
+        seekDistance = other.seekDistance;
+        busyTime = other.busyTime;
+        idleTime = other.idleTime;
+        queueDepth = other.queueDepth;
+        maxQueueDepth = other.maxQueueDepth;
+        queueDepthSum = other.queueDepthSum;
+        submissions = other.submissions;
+        totalWaitTime = other.totalWaitTime;
+        maxWaitTime = other.maxWaitTime;
+        System.arraycopy( other.latency, 0, latency, 0, latency.length );
+        totalLatency = other.totalLatency;
+        maxLatency = other.maxLatency;
+        completed = other.completed;
+    }
+
+    public long getServicedRequests( ) {
+        long serviced = 0;
+        for ( int i = 0; i < commands.length; ++i ) {
+            serviced += commands[i];
+        }
+        return serviced;
+    }
+
+    @Override
+    public String toString( ) {
+        StringBuilder s = new StringBuilder( );
+        s.append( String.format( "reads %d, writes %d, syncs %d, readv %d, writev %d, readrun %d, writerun %d%n",
+                                 commands[DiskRequest.READ], commands[DiskRequest.WRITE],
+                                 commands[DiskRequest.SYNC], commands[DiskRequest.READV],
+                                 commands[DiskRequest.WRITEV], commands[DiskRequest.READRUN],
+                                 commands[DiskRequest.WRITERUN] ) );
+        s.append( String.format( "blocks read %d, blocks written %d, seek distance %d tracks%n",
+                                 blocksRead, blocksWritten, seekDistance ) );
+        s.append( String.format( "busy %d ms, idle %d ms%n", busyTime, idleTime ) );
+        s.append( String.format( "queue depth %d (max %d, avg %.2f), wait avg %.2f ms (max %d ms)%n",
+                                 queueDepth, maxQueueDepth,
+                                 submissions == 0 ? 0.0 : (double)queueDepthSum / submissions,
+                                 completed == 0 ? 0.0 : (double)totalWaitTime / completed,
+                                 maxWaitTime ) );
+        s.append( String.format( "latency avg %.2f ms (max %d ms)%n",
+                                 completed == 0 ? 0.0 : (double)totalLatency / completed, maxLatency ) );
+        for ( int b = 0; b < BUCKETS; ++b ) {
+            if ( latency[b] == 0 ) {
+                continue;
+            }
+            String range = ( b == 0 ) ? "< 1" :
+                           ( b == BUCKETS - 1 ) ? ">= " + ( 1L << ( b - 1 ) ) :
+                           ( 1L << ( b - 1 ) ) + "-" + ( ( 1L << b ) - 1 );
+            s.append( String.format( "  %10s ms: %d%n", range, latency[b] ) );
+        }
+        return s.toString( );
+    }
+}
@@ -11,6 +11,9 @@ public class FileTableEntry {          // Each table entry should have
     public final short iNumber;         //    this inode number
     public int count;                   //    # threads sharing this entry
     public final String mode;           //    "r", "w", "w+", or "a"
+    public short[] window = null;       //    blocks preallocated for this file's coming writes,
+    public int windowNext = 0;          //    of which window[windowNext] up to
+    public int windowEnd = 0;           //    window[windowEnd - 1] are still unused
 
     public FileTableEntry ( Inode i, short inumber, String m ) {
         seekPtr = 0;             // the seek pointer is set to the file top
@@ -1,19 +1,28 @@
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * @author Martin Metke
  * @date    2017/08/17
  *
  * The Inode class is link between a filename and actual data blocks on disk.
  * It's really more of a glorified struct than anything else.
+ *
+ * A file's data blocks are described by extents: runs of physically consecutive blocks, each
+ * recorded as its first block and its length in blocks.  The first INLINE_EXTENTS live in the
+ * Inode itself; a fragmented file's later extents spill into an extent tree of up to three levels,
+ * whose leaves hold extents and whose index blocks point at leaves (or at further index blocks).
  */
 public class Inode {
     private final static int iNodeSize = 32;       // fix to 32 bytes
-    private final static int directSize = 11;      // # direct pointers
-    private final static int[] fieldSizes = {4, 2, 2,
-                                             2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
-                                             2};    // Field sizes of a serialized Inode
+    public final static int INLINE_EXTENTS = 5;    // # extents stored in the Inode
+    // On disk: length (4 bytes), count, flag, 5 extents of (start, length), the extent block and the
+    // extent count (2 bytes each)
+
+    // Per-thread staging for one serialized Inode, so loading and saving allocate nothing
+    private final static ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[iNodeSize];
+        }
+    };
 
     // Flag values
     public final static short UNUSED =    0;
@@ -23,43 +32,61 @@ public class Inode {
     public int length;                             // file size in bytes
     public short count;                            // # file-table entries pointing to this
     public short flag;                             // 0 = unused, 1 = used, ...
-    public short direct[] = new short[directSize]; // direct pointers
-    public short indirect;                         // a indirect pointer
+    public short start[] = new short[INLINE_EXTENTS];  // first block of each inline extent
+    public short blocks[] = new short[INLINE_EXTENTS]; // # blocks in each inline extent
+    public short extentBlock;                      // root of the tree holding the extents past the inline ones
+    public short extents;                          // # extents in use
+
+    // Every extent, decoded from the Inode and its extent tree the first time the file system needs
+    // them and then kept with this in-memory Inode, which all open FileTableEntries of a file share.
+    // Null until then; never written to disk.
+    public short extentStart[] = null;
+    public short extentLength[] = null;
 
     public Inode( ) {                                     // a default constructor
         length = 0;
         count = 0;
         flag = USED;
-        for ( int i = 0; i < directSize; i++ )
-            direct[i] = -1;
-        indirect = -1;
+        clearExtents();
     }
 
     public Inode( short iNumber ) {                       // retrieving inode from disk
         short block = (short)(1 + (iNumber / 16)); // block 1 if iNumber is 0-15, 2 if 16-31, etc.
         int offset = iNumber % 16 ;           // and the remainder shows the offset within the block
 
-        // Prep to load
-        List<Object> fields = SysLib.disk2List(block, offset * iNodeSize, fieldSizes);
+        // Read just this Inode's bytes out of the cached block, then decode them
+        byte[] data = scratch.get();
 
         // Try to read in fields
-        if(fields.get(0) != null) { // read-in from disk has succeeded
-            this.length = (int) fields.get(0);
-            this.count = (short) fields.get(1);
-            this.flag = (short) fields.get(2);
-            for (int i = 0; i < directSize; ++i){
-                this.direct[i] = (short) fields.get(3 + i);
+        if(SysLib.creadat(block & 0xFFFF, offset * iNodeSize, data, 0, iNodeSize) == Kernel.OK) {
+            this.length = SysLib.bytes2int(data, 0);
+            this.count = SysLib.bytes2short(data, 4);
+            this.flag = SysLib.bytes2short(data, 6);
+            for (int i = 0; i < INLINE_EXTENTS; ++i){
+                this.start[i] = SysLib.bytes2short(data, 8 + i * 4);
+                this.blocks[i] = SysLib.bytes2short(data, 10 + i * 4);
             }
-            this.indirect = (short) fields.get(fields.size() -1);
+            this.extentBlock = SysLib.bytes2short(data, 8 + INLINE_EXTENTS * 4);
+            this.extents = SysLib.bytes2short(data, 10 + INLINE_EXTENTS * 4);
         }
         else{ // Something has gone wrong; initialize with default values
             length = 0;
             count = 0;
             flag = 1;
-            for ( int i = 0; i < directSize; i++ )
-                direct[i] = -1;
-            indirect = -1;
+            clearExtents();
+        }
+    }
+
+    // Forgets every extent; the blocks themselves must already have been freed
+    public void clearExtents( ) {
+        for ( int i = 0; i < INLINE_EXTENTS; i++ ) {
+            start[i] = -1;
+            blocks[i] = 0;
         }
+        extentBlock = -1;
+        extents = 0;
+        extentStart = null;
+        extentLength = null;
     }
 
     @Override
@@ -83,9 +110,11 @@ public class Inode {
         // fields are otherwise equal, o and this should be identical
         boolean equal = true;
         equal = equal & (o.length == this.length);
-        equal = equal & (o.indirect == this.indirect);
-        for (int i = 0; i < 11; ++i){
-            equal = equal & (o.direct[i] == this.direct[i]);
+        equal = equal & (o.extentBlock == this.extentBlock);
+        equal = equal & (o.extents == this.extents);
+        for (int i = 0; i < INLINE_EXTENTS; ++i){
+            equal = equal & (o.start[i] == this.start[i]);
+            equal = equal & (o.blocks[i] == this.blocks[i]);
         }
         return equal;
     }
@@ -94,19 +123,21 @@ public class Inode {
         short block = (short)(1 + (iNumber / 16));  // block 1 if iNumber is 0-15, 2 if 16-31, etc.
         int offset = iNumber % 16;                  // and the remainder shows the offset within the block
 
-        List<Object> fields = new ArrayList<Object>(fieldSizes.length);
+        byte[] data = scratch.get();
 
-        // Marshal fields into the list
-        fields.add(0, this.length);
-        fields.add(1, this.count);
-        fields.add(2, this.flag);
-        for (int i = 0; i < directSize; ++i){
-            fields.add(3 + i, this.direct[i]);
+        // Marshal fields into the staging bytes
+        SysLib.int2bytes(this.length, data, 0);
+        SysLib.short2bytes(this.count, data, 4);
+        SysLib.short2bytes(this.flag, data, 6);
+        for (int i = 0; i < INLINE_EXTENTS; ++i){
+            SysLib.short2bytes(this.start[i], data, 8 + i * 4);
+            SysLib.short2bytes(this.blocks[i], data, 10 + i * 4);
         }
-        fields.add(fields.size(), this.indirect);
+        SysLib.short2bytes(this.extentBlock, data, 8 + INLINE_EXTENTS * 4);
+        SysLib.short2bytes(this.extents, data, 10 + INLINE_EXTENTS * 4);
 
         // request write-back; this should only overwrite the bytes specific to this Inode
-        return SysLib.list2Disk(fields, fieldSizes, block, offset * iNodeSize);
+        return SysLib.cwriteat(block & 0xFFFF, offset * iNodeSize, data, 0, iNodeSize);
     }
 
-}
\ No newline at end of file
+}
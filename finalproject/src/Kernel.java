@@ -1,6 +1,7 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * @author Martin L. Metke
@@ -43,6 +44,36 @@ public class Kernel
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+    // Vectored block I/O
+    public final static int RAWREADV = 20; // SysLib.rawreadv(int blks[], byte b[])
+    public final static int RAWWRITEV= 21; // SysLib.rawwritev(int blks[], byte b[])
+    public final static int RAWREADRUN = 22; // SysLib.rawreadrun(int blk, byte b[])
+    public final static int RAWWRITERUN= 23; // SysLib.rawwriterun(int blk, byte b[])
+
+    // Asynchronous block I/O
+    public final static int RAWREADASYNC = 24; // SysLib.rawreadAsync(int blk, byte b[])
+    public final static int RAWWRITEASYNC= 25; // SysLib.rawwriteAsync(int blk, byte b[])
+    public final static int RAWWAIT      = 26; // SysLib.rawwait(int token)
+    public final static int RAWPOLL      = 27; // SysLib.rawpoll(int token)
+
+    // Disk geometry
+    public final static int DISKBLOCKS   = 28; // SysLib.diskBlocks( )
+    public final static int DISKSTATS    = 29; // SysLib.diskStats(DiskStats stats)
+
+    // Vectored cached block I/O
+    public final static int CREADV  = 30; // SysLib.creadv(int blks[], byte b[])
+    public final static int CWRITEV = 31; // SysLib.cwritev(int blks[], byte b[])
+
+    // In-place cached block reads
+    public final static int CACQUIRE = 32; // SysLib.cacquire(int blk, int offset, int length,
+                                           //                 ByteBuffer view[])
+    public final static int CRELEASE = 33; // SysLib.crelease(int frame)
+    public final static int CACHESTATS = 34; // SysLib.cacheStats(CacheStats stats)
+    public final static int CWRITEAT = 35; // SysLib.cwriteat(int blk, int offset, byte b[],
+                                           //                int bOffset, int length)
+    public final static int CREADAT = 36;  // SysLib.creadat(int blk, int offset, byte b[],
+                                           //               int bOffset, int length)
+
     // Predefined file descriptors
     public final static int STDIN  = 0;
     public final static int STDOUT = 1;
@@ -54,7 +85,7 @@ public class Kernel
 
     // System thread references
     private static Scheduler scheduler;
-    private static Disk disk;
+    private static DiskDevice disk;
     private static Cache cache;
 
     // Synchronized Queues
@@ -62,7 +93,21 @@ public class Kernel
     private static SyncQueue ioQueue;    // I/O queue
 
     private final static int COND_DISK_REQ = 1; // wait condition 
-    private final static int COND_DISK_FIN = 2; // wait condition
+
+    // Outstanding asynchronous disk requests, keyed by the token handed back
+    // to the caller; an entry is retired when its token is waited on or polls
+    // as complete.  Tokens start at 1 so they never read as OK or ERROR.
+    private static Hashtable<Integer, DiskRequest> asyncRequests
+	= new Hashtable<Integer, DiskRequest>( );
+    private static int nextToken = 1;
+
+    // Hands out the next token for an asynchronous request
+    private static synchronized int registerAsync( DiskRequest request ) {
+	int token = nextToken;
+	nextToken = ( nextToken == Integer.MAX_VALUE ) ? 1 : nextToken + 1;
+	asyncRequests.put( token, request );
+	return token;
+    }
 
     // Standard input
     private static BufferedReader input
@@ -71,6 +116,24 @@ public class Kernel
     // FileSystem instance for Final Project
     private static FileSystem fs;
 
+    // Boot-time options, passed from Boot's command line through SysLib.boot( )
+    private static int diskBlocks = 1000;      // -blocks=N: disk size in blocks
+    private static boolean mappedDisk = false; // -mmap: memory-map the DISK file
+    private static boolean idleFlush = false;  // -idleflush: write back dirty blocks while idle
+    private static DiskPolicy diskPolicy = null; // -disksched=fifo|sstf|scan|clook
+    private static boolean ramDisk = false;    // -ramdisk: zero-latency in-memory disk
+    private static int trackSize = Disk.defaultTrackSize;         // -tracksize=N
+    private static int transferTime = Disk.defaultTransferTime;   // -transfertime=ms
+    private static int delayPerTrack = Disk.defaultDelayPerTrack; // -trackdelay=ms
+    private static boolean useCache = true;    // -nocache: cached calls go straight to the disk
+    private static int cacheBlocks = 10;       // -cacheblocks=N: cache size in blocks
+    private static boolean cacheCleaner = false; // -cleaner: write back dirty cache blocks early
+    private static int dirtyRatio = 25;        // -dirtyratio=N: % of cache dirty before cleaning
+    private static int dirtyAge = 2000;        // -dirtyage=ms: longest a block stays dirty (0: no limit)
+    private static boolean readAhead = false;  // -readahead: prefetch ahead of sequential reads
+    private static ReplacementPolicy cachePolicy = null; // -cachepolicy=esc|clock|lru|2q|arc
+    private static boolean cacheSlab = false;  // -cacheslab: keep cache pages off the Java heap
+
     // The heart of Kernel
     public static int interrupt( int irq, int cmd, int param, Object args ) {
 	TCB myTcb;
@@ -78,23 +141,53 @@ public class Kernel
 	case INTERRUPT_SOFTWARE: // System calls
 	    switch( cmd ) {
 	    case BOOT:
+		// pick up any options given on the Boot command line
+		parseBootArgs( ( String[] )args );
+
+		// block pointers on disk are unsigned shorts, with 0xFFFF
+		// reserved as the null pointer
+		if ( diskBlocks < 1 || diskBlocks > FileSystem.MAX_DISK_BLOCKS ) {
+		    System.out.println( "threadOS: disk size must be 1 to " +
+					FileSystem.MAX_DISK_BLOCKS + " blocks" );
+		    return ERROR;
+		}
+
 		// instantiate and start a scheduler
 		scheduler = new Scheduler( );
 		scheduler.start( );
 
 		// instantiate and start a disk
-		disk = new Disk( 1000 );
+		if ( ramDisk )
+		    disk = new RamDisk( diskBlocks );
+		else {
+		    Disk simulated = new Disk( diskBlocks, mappedDisk, trackSize,
+					       transferTime, delayPerTrack );
+		    simulated.setIdleFlush( idleFlush );
+		    disk = simulated;
+		}
+		disk.setPolicy( diskPolicy );
 		disk.start( );
 
-		// instantiate a cache memory
-		cache = new Cache( disk.blockSize, 10 );
+		// instantiate a cache memory, through which the file system
+		// does its block I/O
+		if ( useCache ) {
+		    cache = new Cache( Disk.blockSize, Math.max( cacheBlocks, 1 ),
+				       diskBlocks, cacheSlab );
+		    cache.setPolicy( cachePolicy );
+		    if ( cacheCleaner )
+			cache.startCleaner( dirtyRatio, dirtyAge );
+		    if ( readAhead )
+			cache.startReadAhead( );
+		}
 
 		// instantiate synchronized queues
 		ioQueue = new SyncQueue( );
 		waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
         // Instantiate a new FileSystem
-        fs = new FileSystem( 1000 );
+        fs = new FileSystem( diskBlocks );
+        if ( cache != null )
+            cache.setDataStart( fs.firstDataBlock( ) );
 
 		return OK;
 	    case EXEC:
@@ -122,25 +215,89 @@ public class Kernel
 	    case SLEEP:   // sleep a given period of milliseconds
 		scheduler.sleepThread( param ); // param = milliseconds
 		return OK;
-	    case RAWREAD: // read a block of data from disk
-		while ( disk.read( param, ( byte[] )args ) == false )
+	    case RAWREAD: { // read a block of data from disk
+		DiskRequest request;
+		while ( ( request = disk.read( param, ( byte[] )args ) ) == null )
 		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
-		return OK;
-	    case RAWWRITE: // write a block of data to disk
-		while ( disk.write( param, ( byte[] )args ) == false )
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWWRITE: { // write a block of data to disk
+		DiskRequest request;
+		while ( ( request = disk.write( param, ( byte[] )args ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWREADV: { // read a list of blocks into one contiguous buffer
+		Object[] vector = ( Object[] )args;
+		DiskRequest request;
+		while ( ( request = disk.readv( ( int[] )vector[0],
+						( byte[] )vector[1] ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWWRITEV: { // write a list of blocks from one contiguous buffer
+		Object[] vector = ( Object[] )args;
+		DiskRequest request;
+		while ( ( request = disk.writev( ( int[] )vector[0],
+						 ( byte[] )vector[1] ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWREADRUN: { // read b.length / 512 consecutive blocks from blk
+		DiskRequest request;
+		while ( ( request = disk.readRun( param, ( byte[] )args ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWWRITERUN: { // write b.length / 512 consecutive blocks to blk
+		DiskRequest request;
+		while ( ( request = disk.writeRun( param, ( byte[] )args ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWREADASYNC: { // queue a block read and return without waiting
+		DiskRequest request;
+		while ( ( request = disk.read( param, ( byte[] )args ) ) == null )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		return registerAsync( request );
+	    }
+	    case RAWWRITEASYNC: { // queue a block write and return without waiting
+		DiskRequest request;
+		while ( ( request = disk.write( param, ( byte[] )args ) ) == null )
 		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
+		return registerAsync( request );
+	    }
+	    case RAWWAIT: { // wait for an asynchronous request and retire its token
+		DiskRequest request = asyncRequests.remove( param );
+		if ( request == null )
+		    return ERROR;
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
+	    case RAWPOLL: { // 0 while pending; once complete, retire the token
+		DiskRequest request = asyncRequests.get( param );
+		if ( request == null )
+		    return ERROR;
+		if ( !request.isDone( ) )
+		    return 0;
+		asyncRequests.remove( param );
+		return request.waitForCompletion( ) ? 1 : ERROR;
+	    }
+	    case DISKBLOCKS: // number of blocks on the disk
+		return diskBlocks;
+	    case DISKSTATS: // copy the disk's counters into the caller's DiskStats
+		if ( !( args instanceof DiskStats ) )
+		    return ERROR;
+		( ( DiskStats )args ).copyFrom( disk.getStats( ) );
 		return OK;
-	    case SYNC:     // synchronize disk data to a real file
+	    case SYNC: {   // synchronize disk data to a real file
             fs.sync();
-		while ( disk.sync( ) == false )
+		if ( cache != null )
+		    cache.writeBack( );
+		DiskRequest request;
+		while ( ( request = disk.sync( ) ) == null )
 		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
-		return OK;
+		return request.waitForCompletion( ) ? OK : ERROR;
+	    }
 	    case READ:
 		switch ( param ) {
         default:{	// Call FS' read function if this thread has a valid TCB
@@ -202,13 +359,102 @@ public class Kernel
 			return OK;
 		}
 	    case CREAD:   // to be implemented in assignment 4
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWREAD, param, args );
 		return cache.read( param, ( byte[] )args ) ? OK : ERROR;
 	    case CWRITE:  // to be implemented in assignment 4
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWWRITE, param, args );
 		return cache.write( param, ( byte[] )args ) ? OK : ERROR;
+	    case CREADV: { // read a list of blocks, preferring cached copies
+		Object[] vector = ( Object[] )args;
+		if ( cache == null && Cache.isRun( ( int[] )vector[0], ( byte[] )vector[1] ) )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWREADRUN,
+				      ( ( int[] )vector[0] )[0], vector[1] );
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWREADV, param, args );
+		return cache.readv( ( int[] )vector[0], ( byte[] )vector[1] ) ? OK : ERROR;
+	    }
+	    case CWRITEV: { // write a list of blocks, refreshing cached copies
+		Object[] vector = ( Object[] )args;
+		if ( cache == null && Cache.isRun( ( int[] )vector[0], ( byte[] )vector[1] ) )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWWRITERUN,
+				      ( ( int[] )vector[0] )[0], vector[1] );
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, RAWWRITEV, param, args );
+		return cache.writev( ( int[] )vector[0], ( byte[] )vector[1] ) ? OK : ERROR;
+	    }
+	    case CREADAT: { // read part of a block, copied straight out of the cached copy
+		Object[] vector = ( Object[] )args;
+		int[] range = ( int[] )vector[0];
+		byte[] buffer = ( byte[] )vector[1];
+		if ( cache == null ) {
+		    byte[] block = new byte[Disk.blockSize];
+		    if ( range[0] < 0 || range[2] < 0 || range[0] + range[2] > block.length
+			 || range[1] < 0 || range[1] + range[2] > buffer.length
+			 || interrupt( INTERRUPT_SOFTWARE, RAWREAD, param, block ) != OK )
+			return ERROR;
+		    System.arraycopy( block, range[0], buffer, range[1], range[2] );
+		    return OK;
+		}
+		return cache.read( param, range[0], buffer, range[1], range[2] ) ? OK : ERROR;
+	    }
+	    case CWRITEAT: { // write part of a block, merged into the cached copy
+		Object[] vector = ( Object[] )args;
+		int[] range = ( int[] )vector[0];
+		byte[] buffer = ( byte[] )vector[1];
+		if ( cache == null ) {
+		    // read-modify-write straight to the disk
+		    byte[] block = new byte[Disk.blockSize];
+		    if ( range[0] < 0 || range[2] < 0 || range[0] + range[2] > block.length
+			 || range[1] < 0 || range[1] + range[2] > buffer.length
+			 || interrupt( INTERRUPT_SOFTWARE, RAWREAD, param, block ) != OK )
+			return ERROR;
+		    System.arraycopy( buffer, range[1], block, range[0], range[2] );
+		    return interrupt( INTERRUPT_SOFTWARE, RAWWRITE, param, block );
+		}
+		return cache.write( param, range[0], buffer, range[1], range[2] ) ? OK : ERROR;
+	    }
+	    case CACQUIRE: { // pin a cached block and lend a read-only view of part of it
+		Object[] vector = ( Object[] )args;
+		int[] range = ( int[] )vector[0];
+		ByteBuffer[] view = ( ByteBuffer[] )vector[1];
+		if ( cache == null ) {
+		    // nothing to pin; lend a view of a private copy instead
+		    byte[] block = new byte[Disk.blockSize];
+		    if ( range[0] < 0 || range[1] < 0 || range[0] + range[1] > block.length
+			 || interrupt( INTERRUPT_SOFTWARE, RAWREAD, param, block ) != OK )
+			return ERROR;
+		    view[0] = ByteBuffer.wrap( block, range[0], range[1] ).slice( ).asReadOnlyBuffer( );
+		    return OK;
+		}
+		int frame = cache.acquire( param );
+		if ( frame == -1 )
+		    return ERROR;
+		view[0] = cache.view( frame, range[0], range[1] );
+		if ( view[0] == null ) {
+		    cache.release( frame );
+		    return ERROR;
+		}
+		return frame;
+	    }
+	    case CACHESTATS: // copy the cache's counters into the caller's CacheStats
+		if ( cache == null || !( args instanceof CacheStats ) )
+		    return ERROR;
+		( ( CacheStats )args ).copyFrom( cache.getStats( ) );
+		return OK;
+	    case CRELEASE: // unpin a block pinned by CACQUIRE
+		if ( cache != null )
+		    cache.release( param );
+		return OK;
 	    case CSYNC:   // to be implemented in assignment 4
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, SYNC, param, args );
 		cache.sync( );
 		return OK;
 	    case CFLUSH:  // to be implemented in assignment 4
+		if ( cache == null )
+		    return interrupt( INTERRUPT_SOFTWARE, SYNC, param, args );
 		cache.flush( );
 		return OK;
 	    case OPEN: {    // to be implemented in project
@@ -252,16 +498,22 @@ public class Kernel
 			return retval;
 		}
 	    case FORMAT:
-            return fs.format(param) ? OK : ERROR;
+            // every block is about to be rewritten, so nothing cached is worth keeping
+            if ( cache != null )
+                cache.invalidate( );
+            if ( !fs.format(param) )
+                return ERROR;
+            if ( cache != null )
+                cache.setDataStart( fs.firstDataBlock( ) );
+            return OK;
 	    case DELETE:  // to be implemented in project
             return (fs.delete((String)args)) ? OK : ERROR;
 	    }
 	    return ERROR;
 	case INTERRUPT_DISK: // Disk interrupts
-	    // wake up the thread waiting for a service completion
-	    ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-	    // wake up the thread waiting for a request acceptance
+	    // a queue slot has opened up; wake up one thread waiting for a
+	    // request acceptance.  Service completions wake their own
+	    // submitters through DiskRequest.
 	    ioQueue.dequeueAndWakeup( COND_DISK_REQ );
 
 	    return OK;
@@ -271,6 +523,64 @@ public class Kernel
 	return OK;
     }
 
+    // Reading boot-time options
+    private static void parseBootArgs( String args[] ) {
+	if ( args == null )
+	    return;
+	for ( int i = 0; i < args.length; i++ ) {
+	    if ( args[i].equals( "-mmap" ) )
+		mappedDisk = true;
+	    else if ( args[i].equals( "-idleflush" ) )
+		idleFlush = true;
+	    else if ( args[i].startsWith( "-blocks=" ) )
+		diskBlocks = parseBootInt( args[i], diskBlocks );
+	    else if ( args[i].equals( "-ramdisk" ) )
+		ramDisk = true;
+	    else if ( args[i].equals( "-nocache" ) )
+		useCache = false;
+	    else if ( args[i].startsWith( "-cacheblocks=" ) )
+		cacheBlocks = parseBootInt( args[i], cacheBlocks );
+	    else if ( args[i].equals( "-cleaner" ) )
+		cacheCleaner = true;
+	    else if ( args[i].equals( "-readahead" ) )
+		readAhead = true;
+	    else if ( args[i].equals( "-cacheslab" ) )
+		cacheSlab = true;
+	    else if ( args[i].startsWith( "-cachepolicy=" ) ) {
+		cachePolicy = ReplacementPolicy.forName( args[i].substring( 13 ) );
+		if ( cachePolicy == null )
+		    System.out.println( "threadOS: unknown cache policy " + args[i] );
+	    }
+	    else if ( args[i].startsWith( "-dirtyratio=" ) )
+		dirtyRatio = parseBootInt( args[i], dirtyRatio );
+	    else if ( args[i].startsWith( "-dirtyage=" ) )
+		dirtyAge = parseBootInt( args[i], dirtyAge );
+	    else if ( args[i].startsWith( "-tracksize=" ) )
+		trackSize = parseBootInt( args[i], trackSize );
+	    else if ( args[i].startsWith( "-transfertime=" ) )
+		transferTime = parseBootInt( args[i], transferTime );
+	    else if ( args[i].startsWith( "-trackdelay=" ) )
+		delayPerTrack = parseBootInt( args[i], delayPerTrack );
+	    else if ( args[i].startsWith( "-disksched=" ) ) {
+		diskPolicy = DiskPolicy.forName( args[i].substring( 11 ) );
+		if ( diskPolicy == null )
+		    System.out.println( "threadOS: unknown disk policy " + args[i] );
+	    }
+	    else
+		System.out.println( "threadOS: unknown boot option " + args[i] );
+	}
+    }
+
+    // Reading the number after '=' in a boot option, or keeping the default
+    private static int parseBootInt( String arg, int defaultValue ) {
+	try {
+	    return Integer.parseInt( arg.substring( arg.indexOf( '=' ) + 1 ) );
+	} catch ( NumberFormatException e ) {
+	    System.out.println( "threadOS: bad boot option " + arg );
+	    return defaultValue;
+	}
+    }
+
     // Spawning a new thread
     private static int sysExec( String args[] ) {
 	String thrName = args[0]; // args[0] has a thread name
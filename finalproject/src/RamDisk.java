@@ -0,0 +1,160 @@
+/**
+ * The RamDisk is a zero-latency DiskDevice for functional testing.  Blocks live only in memory
+ * (the DISK file is neither read nor written), and every command is serviced immediately in the
+ * calling thread, so the returned DiskRequest is already complete.  There is no head to move,
+ * so the ordering policy is recorded but never consulted.
+ */
+public class RamDisk implements DiskDevice {
+    private final int diskSize;
+    private final byte[] data;
+
+    private DiskPolicy policy;
+    private int nextTag;
+    private DiskStats stats;
+
+    public RamDisk( int totalBlocks ) {
+        diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+        data = new byte[diskSize * Disk.blockSize];
+        policy = new DiskPolicy.Fifo( );
+        nextTag = 0;
+        stats = new DiskStats( );
+    }
+
+    public synchronized DiskRequest read( int blockId, byte[] buffer ) {
+        return readRun( DiskRequest.READ, blockId, buffer, 1 );
+    }
+
+    public synchronized DiskRequest write( int blockId, byte[] buffer ) {
+        return writeRun( DiskRequest.WRITE, blockId, buffer, 1 );
+    }
+
+    public synchronized DiskRequest sync( ) {
+        DiskRequest request = newRequest( DiskRequest.SYNC, 0, 1, null );
+        record( request, 0 );
+        request.complete( true );
+        return request;
+    }
+
+    public synchronized DiskRequest readv( int[] blockIds, byte[] buffer ) {
+        DiskRequest request = new DiskRequest( newTag( ), DiskRequest.READV, blockIds, buffer );
+        boolean valid = validVector( blockIds, buffer );
+        if ( valid ) {
+            for ( int i = 0; i < blockIds.length; ++i ) {
+                System.arraycopy( data, blockIds[i] * Disk.blockSize, buffer, i * Disk.blockSize,
+                                  Disk.blockSize );
+            }
+            record( request, blockIds.length );
+        }
+        request.complete( valid );
+        return request;
+    }
+
+    public synchronized DiskRequest writev( int[] blockIds, byte[] buffer ) {
+        DiskRequest request = new DiskRequest( newTag( ), DiskRequest.WRITEV, blockIds, buffer );
+        boolean valid = validVector( blockIds, buffer );
+        if ( valid ) {
+            for ( int i = 0; i < blockIds.length; ++i ) {
+                System.arraycopy( buffer, i * Disk.blockSize, data, blockIds[i] * Disk.blockSize,
+                                  Disk.blockSize );
+            }
+            record( request, blockIds.length );
+        }
+        request.complete( valid );
+        return request;
+    }
+
+    public synchronized DiskRequest readRun( int blockId, byte[] buffer ) {
+        return readRun( DiskRequest.READRUN, blockId, buffer, buffer.length / Disk.blockSize );
+    }
+
+    public synchronized DiskRequest writeRun( int blockId, byte[] buffer ) {
+        return writeRun( DiskRequest.WRITERUN, blockId, buffer, buffer.length / Disk.blockSize );
+    }
+
+    // Reads count consecutive blocks; command is READ for a single block, so it is counted as one
+    private DiskRequest readRun( int command, int blockId, byte[] buffer, int count ) {
+        DiskRequest request = newRequest( command, blockId, count, buffer );
+        boolean valid = validRun( blockId, count, buffer );
+        if ( valid ) {
+            System.arraycopy( data, blockId * Disk.blockSize, buffer, 0, count * Disk.blockSize );
+            record( request, count );
+        }
+        request.complete( valid );
+        return request;
+    }
+
+    // Writes count consecutive blocks; command is WRITE for a single block, so it is counted as one
+    private DiskRequest writeRun( int command, int blockId, byte[] buffer, int count ) {
+        DiskRequest request = newRequest( command, blockId, count, buffer );
+        boolean valid = validRun( blockId, count, buffer );
+        if ( valid ) {
+            System.arraycopy( buffer, 0, data, blockId * Disk.blockSize, count * Disk.blockSize );
+            record( request, count );
+        }
+        request.complete( valid );
+        return request;
+    }
+
+    private boolean validRun( int blockId, int count, byte[] buffer ) {
+        if ( count < 1 || blockId < 0 || blockId + count > diskSize
+             || buffer.length < count * Disk.blockSize ) {
+            SysLib.cerr( "threadOS: a wrong blockId for the RAM disk\n" );
+            return false;
+        }
+        return true;
+    }
+
+    private boolean validVector( int[] blockIds, byte[] buffer ) {
+        boolean valid = buffer.length >= blockIds.length * Disk.blockSize;
+        for ( int i = 0; i < blockIds.length && valid; ++i ) {
+            valid = blockIds[i] >= 0 && blockIds[i] < diskSize;
+        }
+        if ( !valid ) {
+            SysLib.cerr( "threadOS: a wrong blockId for the RAM disk\n" );
+        }
+        return valid;
+    }
+
+    private DiskRequest newRequest( int command, int blockId, int count, byte[] buffer ) {
+        return new DiskRequest( newTag( ), command, blockId, count, buffer );
+    }
+
+    private int newTag( ) {
+        int tag = nextTag;
+        nextTag = ( nextTag + 1 ) & Integer.MAX_VALUE;
+        return tag;
+    }
+
+    public synchronized void setPolicy( DiskPolicy policy ) {
+        if ( policy != null ) {
+            this.policy = policy;
+        }
+    }
+
+    public synchronized DiskPolicy getPolicy( ) {
+        return policy;
+    }
+
+    public synchronized DiskStats getStats( ) {
+        DiskStats snapshot = new DiskStats( );
+        snapshot.copyFrom( stats );
+        return snapshot;
+    }
+
+    // Counts a serviced request; every request completes as soon as it is submitted
+    private void record( DiskRequest request, int blocks ) {
+        ++stats.commands[request.command];
+        if ( request.command == DiskRequest.READ || request.command == DiskRequest.READV
+             || request.command == DiskRequest.READRUN ) {
+            stats.blocksRead += blocks;
+        } else if ( request.command != DiskRequest.SYNC ) {
+            stats.blocksWritten += blocks;
+        }
+        ++stats.submissions;
+        stats.recordLatency( 0 );
+    }
+
+    // Nothing to start; commands are serviced by the calling thread
+    public void start( ) {
+    }
+}
@@ -0,0 +1,421 @@
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A ReplacementPolicy decides which cached page the Cache gives up when it needs a page and none
+ * is free.  The Cache calls every method with its replacement lock held, so a policy needs no
+ * locking of its own.  Cache hits take no shared lock at all; a policy learns about them only
+ * through each page's reference bit and last-use time (see Pages), so the policies that keep
+ * lists (2Q and ARC) act on a hit the next time a victim search reaches the page, the way CLOCK
+ * does.
+ *
+ * Five policies are provided: ESC (the enhanced second-chance scan the Cache has always used),
+ * CLOCK, LRU, 2Q and ARC.  2Q and ARC are scan resistant: a block must be used again after the use
+ * that brought it in before it can push out the frequently used blocks, so one long sequential
+ * read cannot evict every inode block.
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * The policy's view of the Cache's pages, numbered 0 to size( ) - 1.
+     */
+    interface Pages {
+        int size( );
+
+        // True if page can be given up now: it is not being filled or written back and, if
+        // cleanOnly, it is clean and is not a prefetched page waiting for its first use
+        boolean evictable( int page, boolean cleanOnly );
+
+        boolean dirty( int page );
+
+        // Set whenever the page is used, and cleared only by the policy
+        boolean referenced( int page );
+
+        void clearReferenced( int page );
+
+        // System.nanoTime( ) of the page's last use
+        long lastUse( int page );
+    }
+
+    /**
+     * @brief   Forget all history
+     * @param pages     Pages to choose from; every page is now free
+     */
+    void reset( Pages pages );
+
+    /**
+     * @brief   Note that a page has been given a block
+     * @param page      int, page now holding block
+     * @param block     int, block ID
+     */
+    void filled( int page, int block );
+
+    /**
+     * @brief   Note that a page is giving up its block
+     * @param page      int, page being reused or freed
+     * @param block     int, block ID it held
+     */
+    void evicted( int page, int block );
+
+    /**
+     * @brief   Choose a page to give up; the Cache calls evicted( ) if it takes it
+     * @param cleanOnly     boolean, true if only pages evictable with cleanOnly may be chosen
+     * @return  page        int, page to give up, or -1 if no page can be given up now
+     */
+    int victim( boolean cleanOnly );
+
+    /**
+     * @brief   Look up a policy by its boot-option name
+     * @param name      String, one of "esc", "clock", "lru", "2q" or "arc"
+     * @return  policy  ReplacementPolicy, or null if the name is not recognized
+     */
+    static ReplacementPolicy forName( String name ) {
+        switch ( name.toLowerCase( ) ) {
+            case "esc":   return new EnhancedSecondChance( );
+            case "clock": return new Clock( );
+            case "lru":   return new Lru( );
+            case "2q":    return new TwoQueue( );
+            case "arc":   return new Arc( );
+            default:      return null;
+        }
+    }
+
+    /**
+     * Enhanced second chance: two passes over the pages ranking them by (reference, dirty) bits,
+     * taking the first unreferenced clean page outright, and clearing reference bits on the way.
+     * A clean-only search is plain second chance over the clean pages.
+     */
+    class EnhancedSecondChance implements ReplacementPolicy {
+        private Pages pages;
+        private int cleanHand;      // where a clean-only search resumes
+
+        public void reset( Pages pages ) {
+            this.pages = pages;
+            cleanHand = 0;
+        }
+
+        public void filled( int page, int block ) {
+        }
+
+        public void evicted( int page, int block ) {
+        }
+
+        public int victim( boolean cleanOnly ) {
+            if ( cleanOnly ) {
+                return cleanVictim( );
+            }
+
+            int index = -1;
+            int lastBest = 0b11111111;
+            int bitmap;
+
+            for ( int j = 0; j < 2; ++j ) {
+                for ( int i = 0; i < pages.size( ); ++i ) {
+
+                    // Pages being filled or written back are not candidates
+                    if ( !pages.evictable( i, false ) ) {
+                        continue;
+                    }
+
+                    bitmap = ( pages.referenced( i ) ? 0b10 : 0b00 ) | ( pages.dirty( i ) ? 0b01 : 0b00 );
+
+                    // Return as soon as we find a 00 entry
+                    if ( bitmap == 0b00 ) {
+                        return i;
+                    }
+                    if ( lastBest > bitmap ) {
+                        lastBest = bitmap;
+                        index = i;
+                    }
+                    if ( ( bitmap & 0b10 ) != 0 ) {
+                        pages.clearReferenced( i );
+                    }
+                }
+            }
+            return index;
+        }
+
+        private int cleanVictim( ) {
+            for ( int n = 0; n < 2 * pages.size( ); ++n ) {
+                int index = cleanHand;
+                cleanHand = ( cleanHand + 1 ) % pages.size( );
+
+                if ( !pages.evictable( index, true ) ) {
+                    continue;
+                }
+                if ( !pages.referenced( index ) ) {
+                    return index;
+                }
+                pages.clearReferenced( index );
+            }
+            return -1;
+        }
+
+        public String toString( ) {
+            return "ESC";
+        }
+    }
+
+    /**
+     * CLOCK: sweep a hand over the pages, giving each referenced page a second chance.
+     */
+    class Clock implements ReplacementPolicy {
+        private Pages pages;
+        private int hand;
+
+        public void reset( Pages pages ) {
+            this.pages = pages;
+            hand = 0;
+        }
+
+        public void filled( int page, int block ) {
+        }
+
+        public void evicted( int page, int block ) {
+        }
+
+        public int victim( boolean cleanOnly ) {
+            for ( int n = 0; n < 2 * pages.size( ); ++n ) {
+                int index = hand;
+                hand = ( hand + 1 ) % pages.size( );
+
+                if ( !pages.evictable( index, cleanOnly ) ) {
+                    continue;
+                }
+                if ( !pages.referenced( index ) ) {
+                    return index;
+                }
+                pages.clearReferenced( index );
+            }
+            return -1;
+        }
+
+        public String toString( ) {
+            return "CLOCK";
+        }
+    }
+
+    /**
+     * Least recently used, by each page's last-use time.  Finding the victim is a scan of the
+     * pages, which keeps hits free of any shared list.
+     */
+    class Lru implements ReplacementPolicy {
+        private Pages pages;
+
+        public void reset( Pages pages ) {
+            this.pages = pages;
+        }
+
+        public void filled( int page, int block ) {
+        }
+
+        public void evicted( int page, int block ) {
+        }
+
+        public int victim( boolean cleanOnly ) {
+            int best = -1;
+            long oldest = Long.MAX_VALUE;
+            for ( int i = 0; i < pages.size( ); ++i ) {
+                if ( pages.evictable( i, cleanOnly ) && pages.lastUse( i ) < oldest ) {
+                    oldest = pages.lastUse( i );
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        public String toString( ) {
+            return "LRU";
+        }
+    }
+
+    /**
+     * Helpers shared by the list-keeping policies.
+     */
+    class Lists {
+
+        // First page of list evictable under cleanOnly, or -1
+        static int firstEvictable( LinkedHashSet<Integer> list, Pages pages, boolean cleanOnly ) {
+            for ( int page : list ) {
+                if ( pages.evictable( page, cleanOnly ) ) {
+                    return page;
+                }
+            }
+            return -1;
+        }
+
+        // Drops the oldest entries of a ghost list until it holds at most limit
+        static void trim( LinkedHashSet<Integer> list, int limit ) {
+            Iterator<Integer> oldest = list.iterator( );
+            while ( list.size( ) > limit && oldest.hasNext( ) ) {
+                oldest.next( );
+                oldest.remove( );
+            }
+        }
+
+        // Moves a page to the tail of a list
+        static void requeue( LinkedHashSet<Integer> list, int page ) {
+            list.remove( page );
+            list.add( page );
+        }
+    }
+
+    /**
+     * 2Q (Johnson and Shasha): a block brought in once waits in the FIFO A1in, holding about a
+     * quarter of the pages.  When it leaves, its ID is remembered in the ghost FIFO A1out; a block
+     * missed again while remembered goes to Am, the main list, managed as a CLOCK.  Blocks used
+     * only once, such as a sequential scan, therefore cycle through A1in without touching Am.
+     */
+    class TwoQueue implements ReplacementPolicy {
+        private Pages pages;
+        private int inLimit;        // Kin: target size of A1in
+        private int outLimit;       // Kout: ghost block IDs remembered
+        private final LinkedHashSet<Integer> a1in = new LinkedHashSet<Integer>( );     // pages
+        private final LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>( );    // block IDs
+        private final LinkedHashSet<Integer> am = new LinkedHashSet<Integer>( );       // pages
+
+        public void reset( Pages pages ) {
+            this.pages = pages;
+            inLimit = Math.max( 1, pages.size( ) / 4 );
+            outLimit = Math.max( 1, pages.size( ) / 2 );
+            a1in.clear( );
+            a1out.clear( );
+            am.clear( );
+        }
+
+        public void filled( int page, int block ) {
+            // Bringing a block in is not a use of it
+            pages.clearReferenced( page );
+
+            if ( a1out.remove( block ) ) {
+                am.add( page );
+            } else {
+                a1in.add( page );
+            }
+        }
+
+        public void evicted( int page, int block ) {
+            if ( a1in.remove( page ) ) {
+                a1out.add( block );
+                Lists.trim( a1out, outLimit );
+            } else {
+                am.remove( page );
+            }
+        }
+
+        public int victim( boolean cleanOnly ) {
+            // Take from A1in while it is over its share, or whenever Am has nothing to give
+            if ( a1in.size( ) > inLimit ) {
+                int page = Lists.firstEvictable( a1in, pages, cleanOnly );
+                if ( page != -1 ) {
+                    return page;
+                }
+            }
+
+            int page = clockAm( cleanOnly );
+            return ( page != -1 ) ? page : Lists.firstEvictable( a1in, pages, cleanOnly );
+        }
+
+        // Second chance over Am, moving referenced pages to its tail
+        private int clockAm( boolean cleanOnly ) {
+            for ( int n = 2 * am.size( ); n > 0 && !am.isEmpty( ); --n ) {
+                int page = am.iterator( ).next( );
+                if ( pages.evictable( page, cleanOnly ) && !pages.referenced( page ) ) {
+                    return page;
+                }
+                pages.clearReferenced( page );
+                Lists.requeue( am, page );
+            }
+            return -1;
+        }
+
+        public String toString( ) {
+            return "2Q";
+        }
+    }
+
+    /**
+     * ARC (Megiddo and Modha), in its CLOCK form CAR (Bansal and Modha) so that hits need only set a
+     * reference bit.  T1 holds pages used once since they came in and T2 pages used again; a
+     * referenced page reached in T1 moves to T2.  Ghost lists B1 and B2 remember block IDs recently
+     * evicted from each, and a miss on a remembered block shifts the target size p of T1 toward
+     * whichever list would have kept it.
+     */
+    class Arc implements ReplacementPolicy {
+        private Pages pages;
+        private int capacity;       // c: pages in the cache
+        private int p;              // target size of T1
+        private final LinkedHashSet<Integer> t1 = new LinkedHashSet<Integer>( );   // pages
+        private final LinkedHashSet<Integer> t2 = new LinkedHashSet<Integer>( );   // pages
+        private final LinkedHashSet<Integer> b1 = new LinkedHashSet<Integer>( );   // block IDs
+        private final LinkedHashSet<Integer> b2 = new LinkedHashSet<Integer>( );   // block IDs
+
+        public void reset( Pages pages ) {
+            this.pages = pages;
+            capacity = pages.size( );
+            p = 0;
+            t1.clear( );
+            t2.clear( );
+            b1.clear( );
+            b2.clear( );
+        }
+
+        public void filled( int page, int block ) {
+            // Bringing a block in is not a use of it
+            pages.clearReferenced( page );
+
+            if ( b1.contains( block ) ) {
+                p = Math.min( p + Math.max( 1, b2.size( ) / b1.size( ) ), capacity );
+                b1.remove( block );
+                t2.add( page );
+            } else if ( b2.contains( block ) ) {
+                p = Math.max( p - Math.max( 1, b1.size( ) / b2.size( ) ), 0 );
+                b2.remove( block );
+                t2.add( page );
+            } else {
+                // Keep the directory to 2c entries, at most c of them about T1
+                if ( t1.size( ) + b1.size( ) >= capacity ) {
+                    Lists.trim( b1, Math.max( 0, capacity - t1.size( ) - 1 ) );
+                } else {
+                    Lists.trim( b2, Math.max( 0, 2 * capacity - t1.size( ) - t2.size( ) - b1.size( ) - 1 ) );
+                }
+                t1.add( page );
+            }
+        }
+
+        public void evicted( int page, int block ) {
+            if ( t1.remove( page ) ) {
+                b1.add( block );
+            } else if ( t2.remove( page ) ) {
+                b2.add( block );
+            }
+        }
+
+        public int victim( boolean cleanOnly ) {
+            for ( int n = 2 * ( t1.size( ) + t2.size( ) ); n > 0; --n ) {
+                boolean fromT1 = !t1.isEmpty( ) && ( t1.size( ) >= Math.max( 1, p ) || t2.isEmpty( ) );
+                LinkedHashSet<Integer> list = fromT1 ? t1 : t2;
+                if ( list.isEmpty( ) ) {
+                    return -1;
+                }
+
+                int page = list.iterator( ).next( );
+                if ( pages.referenced( page ) ) {
+                    // Used again: T1 pages graduate to T2, T2 pages go round again
+                    pages.clearReferenced( page );
+                    list.remove( page );
+                    t2.add( page );
+                } else if ( pages.evictable( page, cleanOnly ) ) {
+                    return page;
+                } else {
+                    Lists.requeue( list, page );
+                }
+            }
+            return -1;
+        }
+
+        public String toString( ) {
+            return "ARC";
+        }
+    }
+}
@@ -1,91 +1,315 @@
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * @author Martin L. Metke
  * @date    2017/08/17
  *
  * The Superblock class keeps track of how many blocks and Inodes are contained in the filesystem,
- * but most importantly, keeps a pointer to the next free block as well as the total free block count.
+ * but most importantly, which blocks are free as well as the total free block count.
+ *
+ * Free space is a bitmap, one bit per disk block (set while the block is in use), stored in the blocks
+ * right after the Inodes and mirrored in memory as a long[].  Allocating and freeing blocks only
+ * touch the mirror; bitmap blocks that changed are written back by toDisk( ), i.e. at sync.
+ *
+ * Blocks can also be reserved: taken out of the free pool for an open file's coming writes, but
+ * still written to disk as free until claimed, so a reservation never outlives a reboot.
  */
 class Superblock {
-    private final static int[] fieldSizes = {4, 4, 4, 4}; // Size of fields needed to store Superblock on disk
+    private final static int size = 16;     // four ints on disk: totalBlocks, totalInodes, bitmapStart, totalFreeBlocks
+    private final static int BITS_PER_BLOCK = 512 * 8;
+
+    // Per-thread staging for the serialized Superblock, so saving it allocates nothing
+    private final static ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[size];
+        }
+    };
 
     public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
-    public int freeList;    // the block number of the free list's head
+    public int bitmapStart; // the block number of the free-space bitmap's first block
     public int totalFreeBlocks; // the number of free disk blocks
 
+    private long[] bitmap;  // bit (b % 64) of word b / 64 is set while block b is in use
+    private long[] reserved; // ... and likewise in here while it is only reserved
+    private int reservedBlocks; // the number of reserved blocks
+    private boolean[] dirty; // bitmap blocks changed since they were last written
+    private int rotor;      // no block below this one is free
+
 
     public Superblock( int diskSize ) {
         this.totalBlocks = diskSize;
         this.totalInodes = 48;
-        this.freeList = (int)Math.ceil(this.totalInodes / 16.0) + 1; // First free block should be first block after Inodes
-        this.totalFreeBlocks = totalBlocks - freeList;
+        this.bitmapStart = (int)Math.ceil(this.totalInodes / 16.0) + 1; // Bitmap starts at the first block after Inodes
+        clearBitmap();
     }
 
     public Superblock( int diskSize, int inodeCount ) {
         this.totalBlocks = diskSize;
         this.totalInodes = inodeCount;
-        this.freeList = (int)Math.ceil(this.totalInodes / 16.0) + 1; // First free block should be first block after Inodes
-        this.totalFreeBlocks = totalBlocks - freeList;
+        this.bitmapStart = (int)Math.ceil(this.totalInodes / 16.0) + 1; // Bitmap starts at the first block after Inodes
+        clearBitmap();
     }
 
+    // Loads a Superblock and its bitmap from disk; totalBlocks is 0 if they do not describe a formatted disk
     public Superblock( short block) {
         // Prep to load
-        List<Object> fields = SysLib.disk2List(block, 0, fieldSizes);
+        byte[] data = scratch.get();
 
-        if(fields.get(0) != null) { // read-in from disk has succeeded
-            this.totalBlocks = (int) fields.get(0);
-            this.totalInodes = (int) fields.get(1);
-            this.freeList = (int) fields.get(2);
-            this.totalFreeBlocks = (int) fields.get(3);
+        if(SysLib.creadat(block & 0xFFFF, 0, data, 0, size) == Kernel.OK) { // read-in from disk has succeeded
+            this.totalBlocks = SysLib.bytes2int(data, 0);
+            this.totalInodes = SysLib.bytes2int(data, 4);
+            this.bitmapStart = SysLib.bytes2int(data, 8);
+            this.totalFreeBlocks = SysLib.bytes2int(data, 12);
         }
-        else{ // Something has gone wrong; initialize with useless values
+
+        boolean consistent = totalBlocks > 0 && totalBlocks <= FileSystem.MAX_DISK_BLOCKS && totalInodes > 0
+                             && bitmapStart == (int)Math.ceil(totalInodes / 16.0) + 1
+                             && firstDataBlock() < totalBlocks;
+        if(!consistent || !loadBitmap()){ // Something has gone wrong; initialize with useless values
             this.totalBlocks = 0;
             this.totalInodes = 0;
-            this.freeList = 1;
+            this.bitmapStart = 1;
             this.totalFreeBlocks = 0;
+            this.bitmap = new long[0];
+            this.reserved = new long[0];
+            this.dirty = new boolean[0];
+        }
+    }
+
+    // Number of blocks the bitmap takes
+    public int bitmapBlocks(){
+        return (totalBlocks + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK;
+    }
+
+    // First block after the superblock, the Inodes and the bitmap
+    public int firstDataBlock(){
+        return bitmapStart + bitmapBlocks();
+    }
+
+    // A bitmap in which only the superblock, the Inodes and the bitmap itself are in use
+    private void clearBitmap(){
+        bitmap = new long[(totalBlocks + 63) / 64];
+        reserved = new long[bitmap.length];
+        dirty = new boolean[bitmapBlocks()];
+        for(int b = 0; b < firstDataBlock(); ++b){
+            bitmap[b >>> 6] |= 1L << b;
         }
+        for(int i = 0; i < dirty.length; ++i){
+            dirty[i] = true;
+        }
+        totalFreeBlocks = totalBlocks - firstDataBlock();
+        rotor = firstDataBlock();
     }
 
+    // Reads the bitmap in; the free block count is recomputed from it
+    private boolean loadBitmap(){
+        byte[] data = new byte[512];
+        bitmap = new long[(totalBlocks + 63) / 64];
+        reserved = new long[bitmap.length];
+        dirty = new boolean[bitmapBlocks()];
+
+        for(int i = 0; i < dirty.length; ++i){
+            if(SysLib.cread(bitmapStart + i, data) == Kernel.ERROR){
+                return false;
+            }
+            for(int w = i * 64, j = 0; w < bitmap.length && j < 64; ++w, ++j){
+                bitmap[w] = ((long)SysLib.bytes2int(data, j * 8) << 32) | (SysLib.bytes2int(data, j * 8 + 4) & 0xFFFFFFFFL);
+            }
+        }
+
+        totalFreeBlocks = 0;
+        for(int b = 0; b < totalBlocks; ++b){
+            if(!isUsed(b)){
+                ++totalFreeBlocks;
+            }
+        }
+        rotor = firstDataBlock();
+        return true;
+    }
+
+    private boolean isUsed(int block){
+        return (bitmap[block >>> 6] & (1L << block)) != 0;
+    }
+
+    private void setUsed(int block, boolean used){
+        if(used){
+            bitmap[block >>> 6] |= 1L << block;
+        }
+        else{
+            bitmap[block >>> 6] &= ~(1L << block);
+        }
+        dirty[block / BITS_PER_BLOCK] = true;
+    }
+
+    // Lowest free block at or after from, or -1 if there is none
+    private int nextFree(int from){
+        for(int w = from >>> 6; w < bitmap.length; ++w){
+            long free = ~bitmap[w];
+            if(w == from >>> 6){
+                free &= -1L << from;
+            }
+            if(free != 0){
+                int block = (w << 6) + Long.numberOfTrailingZeros(free);
+                return (block < totalBlocks) ? block : -1;
+            }
+        }
+        return -1;
+    }
+
+    // Lowest block in use from .. limit - 1, or limit if they are all free
+    private int nextUsed(int from, int limit){
+        limit = Math.min(limit, totalBlocks);
+        for(int b = from; b < limit; b = (b & ~63) + 64){
+            long used = bitmap[b >>> 6] & (-1L << b);
+            if(used != 0){
+                return Math.min((b & ~63) + Long.numberOfTrailingZeros(used), limit);
+            }
+        }
+        return limit;
+    }
+
+    // Allocates the lowest free block; returns -1 if the disk is full
     public synchronized short getNextFree(){
-        int [] header = {2};
-        short next = (short)freeList;
+        int next = nextFree(rotor);
+        if(next == -1){
+            return -1;
+        }
 
-        short nextNext = (short)(SysLib.disk2List(next, 0, header)).get(0);
-        freeList = nextNext;
+        setUsed(next, true);
+        rotor = next + 1;
         --this.totalFreeBlocks;
 
-        return next;
+        return (short)next;
     }
 
-    // Assumes blockNum has been deleted already
-    public synchronized int returnBlock(short blockNum){
+    // First run of count free blocks that starts from .. limit - 1, or -1 if there is none
+    private int findRun(int from, int limit, int count){
+        for(int start = nextFree(from); start != -1 && start < limit; ){
+            int end = nextUsed(start, start + count);
+            if(end - start == count){
+                return start;
+            }
+            start = (end < totalBlocks) ? nextFree(end) : -1;
+        }
+        return -1;
+    }
+
+    // Takes free block out of the pool as a reservation
+    private void take(int block, short[] blocks, int at){
+        setUsed(block, true);
+        reserved[block >>> 6] |= 1L << block;
+        ++reservedBlocks;
+        --this.totalFreeBlocks;
+        if(block == rotor){
+            rotor = block + 1;
+        }
+        blocks[at] = (short)block;
+    }
+
+    // Reserves up to count free blocks in one go, storing them from blocks[offset] on in the order
+    // they should be used, and returns how many it got: count unless the disk is nearly full.
+    // The first run of count free blocks at or after goal is preferred, then the first one anywhere,
+    // so a growing file usually stays one extent; failing both, free blocks are taken as they come.
+    // The blocks stay reserved, and free on disk, until claimed or returned.
+    public synchronized int reserve(int goal, int count, short[] blocks, int offset){
+        if(goal < firstDataBlock() || goal >= totalBlocks){
+            goal = rotor;
+        }
+
+        int got = 0;
+        int start = findRun(goal, totalBlocks, count);
+        if(start == -1 && goal > rotor){
+            start = findRun(rotor, goal, count);
+        }
+
+        if(start != -1){
+            for(int b = start; got < count; ++b){
+                take(b, blocks, offset + got++);
+            }
+        }
+        else{
+            for(int b = nextFree(goal); b != -1 && got < count; b = nextFree(b + 1)){
+                take(b, blocks, offset + got++);
+            }
+            for(int b = nextFree(rotor); b != -1 && b < goal && got < count; b = nextFree(b + 1)){
+                take(b, blocks, offset + got++);
+            }
+        }
+
+        return got;
+    }
 
-        short next = (short)freeList;
+    // Turns the reserved blocks from blocks[from] to blocks[to - 1] into allocated ones
+    public synchronized void claim(short[] blocks, int from, int to){
+        for(int i = from; i < to; ++i){
+            int block = blocks[i] & 0xFFFF;
+            if((reserved[block >>> 6] & (1L << block)) != 0){
+                reserved[block >>> 6] &= ~(1L << block);
+                --reservedBlocks;
+                dirty[block / BITS_PER_BLOCK] = true;
+            }
+        }
+    }
 
-        int [] header = {2};
-        List<Object> fields = new ArrayList<Object>(1);
-        fields.add(0, next);
+    // Frees an allocated or reserved block; assumes blockNum has been deleted already
+    public synchronized int returnBlock(short blockNum){
+        int block = blockNum & 0xFFFF;
 
-        // Log new next free block
-        freeList = blockNum;
+        // Only data blocks in use can be freed
+        if(block < firstDataBlock() || block >= totalBlocks || !isUsed(block)){
+            return Kernel.ERROR;
+        }
+
+        if((reserved[block >>> 6] & (1L << block)) != 0){
+            reserved[block >>> 6] &= ~(1L << block);
+            --reservedBlocks;
+        }
+        setUsed(block, false);
         // Increase count of free blocks
         ++totalFreeBlocks;
+        if(block < rotor){
+            rotor = block;
+        }
 
-        // Write "next" block number to the freed blockNum
-        return SysLib.list2Disk(fields, header, blockNum, 0);
+        return Kernel.OK;
+    }
+
+    // Writes back every bitmap block changed since it was last written; reserved blocks are written as free
+    public synchronized int bitmapToDisk(){
+        int result = Kernel.OK;
+        byte[] data = null;
+
+        for(int i = 0; i < dirty.length; ++i){
+            if(!dirty[i]){
+                continue;
+            }
+            if(data == null){
+                data = new byte[512];
+            }
+            for(int w = i * 64, j = 0; j < 64; ++w, ++j){
+                long word = (w < bitmap.length) ? bitmap[w] & ~reserved[w] : 0;
+                SysLib.int2bytes((int)(word >>> 32), data, j * 8);
+                SysLib.int2bytes((int)word, data, j * 8 + 4);
+            }
+            if(SysLib.cwrite(bitmapStart + i, data) == Kernel.OK){
+                dirty[i] = false;
+            }
+            else{
+                result = Kernel.ERROR;
+            }
+        }
 
+        return result;
     }
 
     public int toDisk(){
-        List<Object> fields = new ArrayList<Object>(fieldSizes.length);
-        fields.add(0, this.totalBlocks);
-        fields.add(1, this.totalInodes);
-        fields.add(2, this.freeList);
-        fields.add(3, this.totalFreeBlocks);
+        byte[] data = scratch.get();
+        SysLib.int2bytes(this.totalBlocks, data, 0);
+        SysLib.int2bytes(this.totalInodes, data, 4);
+        SysLib.int2bytes(this.bitmapStart, data, 8);
+        SysLib.int2bytes(this.totalFreeBlocks + this.reservedBlocks, data, 12);
 
-        return SysLib.list2Disk(fields, fieldSizes, (short)0, 0);
+        int header = SysLib.cwriteat(0, 0, data, 0, size);
+        return (bitmapToDisk() == Kernel.OK) ? header : Kernel.ERROR;
     }
-}
\ No newline at end of file
+}
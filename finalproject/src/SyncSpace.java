@@ -0,0 +1,49 @@
+/**
+ * SyncSpace checks that syncing gives back every block it sets aside.  It formats the disk, syncs
+ * many times, and then expects the free block count to be unchanged and a large write to succeed
+ * in full.  It formats the disk, so run it on a scratch DISK.
+ *
+ * Usage: l SyncSpace [syncs]     (default 200)
+ */
+public class SyncSpace extends Thread {
+  private final static int BLOCKS = 100;                // blocks written after the syncs
+
+  private int syncs = 200;
+
+  public SyncSpace( ) {
+  }
+
+  public SyncSpace( String[] args ) {
+    if ( args.length > 0 )
+      syncs = Integer.parseInt( args[0] );
+  }
+
+  public void run( ) {
+    SysLib.format( 48 );
+    int before = freeBlocks( );
+    for ( int i = 0; i < syncs; i++ )
+      SysLib.sync( );
+    int after = freeBlocks( );
+
+    int fd = SysLib.open( "syncspace", "w" );
+    int wrote = SysLib.write( fd, new byte[BLOCKS * 512] );
+    SysLib.close( fd );
+    SysLib.delete( "syncspace" );
+
+    if ( after == before && wrote == BLOCKS * 512 )
+      SysLib.cout( "SyncSpace: " + syncs + " syncs kept " + after + " blocks free, wrote "
+                   + wrote + " bytes...Correct\n" );
+    else
+      SysLib.cout( "SyncSpace: " + syncs + " syncs left " + after + " of " + before
+                   + " blocks free, wrote " + wrote + " of " + ( BLOCKS * 512 ) + " bytes...wrong\n" );
+    SysLib.exit( );
+  }
+
+  // Free blocks recorded in the superblock, as of a sync
+  private int freeBlocks( ) {
+    byte[] superblock = new byte[512];
+    SysLib.sync( );
+    SysLib.rawread( 0, superblock );
+    return SysLib.bytes2int( superblock, 12 );
+  }
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -22,6 +23,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String args[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, args );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -62,6 +68,75 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // Reads blkNumbers.length blocks in one trap; block blkNumbers[i] lands at b[i * 512]
+    public static int rawreadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    // Writes blkNumbers.length blocks in one trap; block blkNumbers[i] comes from b[i * 512]
+    public static int rawwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    // Reads b.length / 512 consecutive blocks starting at blkNumber as a single sequential run
+    public static int rawreadrun( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADRUN, blkNumber, b );
+    }
+
+    // Writes b.length / 512 consecutive blocks starting at blkNumber as a single sequential run
+    public static int rawwriterun( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITERUN, blkNumber, b );
+    }
+
+    // Queues a block read and returns at once with a token (> 0) for rawwait/rawpoll.
+    // b must not be touched until rawwait( token ) has returned.
+    public static int rawreadAsync( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADASYNC, blkNumber, b );
+    }
+
+    // Queues a block write and returns at once with a token (> 0) for rawwait/rawpoll
+    public static int rawwriteAsync( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEASYNC, blkNumber, b );
+    }
+
+    // Blocks until the request behind token completes and retires the token.  Every token
+    // must be retired once, here or by a rawpoll that reports completion.
+    public static int rawwait( int token ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWAIT, token, null );
+    }
+
+    // Returns 0 if the request behind token is still pending.  Once it has completed the
+    // token is retired and this returns 1, or ERROR if the transfer failed.
+    public static int rawpoll( int token ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWPOLL, token, null );
+    }
+
+    // Returns the number of blocks on the disk chosen at boot
+    public static int diskBlocks( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKBLOCKS, 0, null );
+    }
+
+    // Fills stats with a snapshot of the disk's counters
+    public static int diskStats( DiskStats stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKSTATS, 0, stats );
+    }
+
+    // Fills stats with a snapshot of the cache's counters; ERROR if booted with -nocache
+    public static int cacheStats( CacheStats stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CACHESTATS, 0, stats );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -77,6 +152,63 @@ public class SysLib {
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    // Vectored cread: block blkNumbers[i] lands at b[i * 512]; uncached blocks are not added to the cache
+    public static int creadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    // Partial cread: copies length bytes of block blkNumber from offset into b at bOffset
+    public static int creadat( int blkNumber, int offset, byte[] b, int bOffset, int length ) {
+        return partial( Kernel.CREADAT, blkNumber, offset, b, bOffset, length );
+    }
+
+    // Partial cwrite: copies length bytes of b from bOffset into block blkNumber at offset.  The
+    // cache merges them into its copy of the block, so small writes to one block share a write-back.
+    public static int cwriteat( int blkNumber, int offset, byte[] b, int bOffset, int length ) {
+        return partial( Kernel.CWRITEAT, blkNumber, offset, b, bOffset, length );
+    }
+
+    // Argument vectors for creadat and cwriteat, reused by each thread so that small block reads
+    // and writes allocate nothing
+    private static final ThreadLocal<Object[]> partialArgs = new ThreadLocal<Object[]>( ) {
+        @Override
+        protected Object[] initialValue( ) {
+            return new Object[]{ new int[3], null };
+        }
+    };
+
+    private static int partial( int call, int blkNumber, int offset, byte[] b, int bOffset, int length ) {
+        Object[] args = partialArgs.get( );
+        int[] range = ( int[] )args[0];
+        range[0] = offset;
+        range[1] = bOffset;
+        range[2] = length;
+        args[1] = b;
+        int result = Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, call, blkNumber, args );
+        args[1] = null;     // don't keep the caller's buffer reachable
+        return result;
+    }
+
+    // Vectored cwrite: writes straight to disk and refreshes any cached copies
+    public static int cwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    // Pins block blkNumber in the cache and sets view[0] to a read-only view of its bytes
+    // offset .. offset + length - 1, without copying them.  Returns a frame to pass to crelease
+    // once done with the view, or ERROR.  Do not write the block, or pin another, before then.
+    public static int cacquire( int blkNumber, int offset, int length, ByteBuffer[] view ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.CACQUIRE, blkNumber,
+				 new Object[]{ new int[]{ offset, length }, view } );
+    }
+
+    public static int crelease( int frame ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CRELEASE, frame, null );
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -163,15 +295,22 @@ public class SysLib {
         List<Object> values = new ArrayList<Object>(sizes.length);
         // Keep cursor within block
         int cursor;
+        // Block pointers are unsigned 16-bit numbers
+        int blockId = block & 0xFFFF;
 
         // If the block or offset are invalid, return a list of just null values.
-        if ((block < 0 || block >= 1000) || (offset < 0 || offset >= 512)) {
+        if ((blockId >= diskBlocks()) || (offset < 0 || offset >= 512)) {
             return values;
         } else { // If valid, extract
-            cursor = offset;
+            // Decode in place from the cached block; the view starts at offset, so the cursor does too
+            cursor = 0;
 
-            byte[] buffer = new byte[512];
-            rawread(block, buffer);
+            ByteBuffer[] view = new ByteBuffer[1];
+            int frame = cacquire(blockId, offset, 512 - offset, view);
+            if (frame == Kernel.ERROR) {
+                return values;
+            }
+            ByteBuffer buffer = view[0];
 
             // Attempt to fill in the object list "values" with sets of data from the selected block
             try {
@@ -179,13 +318,13 @@ public class SysLib {
                     // Depending on what size each field is, load a different number of bytes into
                     // the corresponding values field.
                     switch(sizes[i]){
-                        case 4: values.add(i, bytes2int(buffer, cursor));
+                        case 4: values.add(i, buffer.getInt(cursor));
                                 cursor += 4;
                                 break;
-                        case 2: values.add(i, bytes2short(buffer, cursor));
+                        case 2: values.add(i, buffer.getShort(cursor));
                                 cursor += 2;
                                 break;
-                        case 1: values.add(i, buffer[cursor]);
+                        case 1: values.add(i, buffer.get(cursor));
                                 cursor++;
                                 break;
                         default:
@@ -194,7 +333,7 @@ public class SysLib {
                     }
                     // If the selected sizes have somehow put the cursor outside of the block,
                     // discontinue reading fields and return what's been read.
-                    if(cursor >= 512){
+                    if(cursor >= buffer.limit()){
                         break;
                     }
                 }
@@ -202,6 +341,9 @@ public class SysLib {
             catch (IndexOutOfBoundsException e){
                 cerr(e.toString());
             }
+            finally {
+                crelease(frame);
+            }
             return values;
         }
     }
@@ -212,13 +354,15 @@ public class SysLib {
         int retval;
         byte[] buffer = new byte[512];
         int cursor;
+        // Block pointers are unsigned 16-bit numbers
+        int blockId = block & 0xFFFF;
 
         // If block or offset data is out of range, or fields' size doesn't equal sizes.length, return an error
-        if ((block < 0 || block >= 1000) || (offset < 0 || offset >= 512) || (fields.size() != sizes.length)) {
+        if ((blockId >= diskBlocks()) || (offset < 0 || offset >= 512) || (fields.size() != sizes.length)) {
             retval = Kernel.ERROR;
         } else { // If valid, read in the specified block, then update the correct number of bytes and write back
             cursor = offset;
-            retval = rawread(block, buffer);
+            retval = cread(blockId, buffer);
 
             if (retval != Kernel.ERROR) {
                 try {
@@ -250,8 +394,7 @@ public class SysLib {
                 catch (IndexOutOfBoundsException e){
                     cerr(e.toString());
                 }
-                retval = Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-                        Kernel.RAWWRITE, block, buffer );
+                retval = cwrite(blockId, buffer);
             }
         }
         return retval;
@@ -0,0 +1,121 @@
+/**
+ * WritevRace checks that a cached read never goes back to data a writev has replaced.  One thread
+ * rewrites a few blocks with cwritev, numbering each round, and reads them back, while reader
+ * threads cread them and a set of filler blocks that keep the cache evicting.  Every read must see a
+ * whole block from a single round, no older than the last round whose cwritev had returned when the
+ * read began, and once the writer is done every block must read back as its last round.  Boot with a small cache (e.g. -cacheblocks=4) and some
+ * transfer time so reads and writes overlap.  It uses the last blocks of the disk, so run it on a
+ * scratch DISK.
+ *
+ * Usage: l WritevRace [rounds]     (default 200, at most 255)
+ */
+public class WritevRace extends Thread {
+  private final static int BLOCKS = 8;          // blocks the writer rewrites
+  private final static int FILLERS = 8;         // blocks read only to force evictions
+  private final static int READERS = 4;
+
+  private static volatile int written;          // last round whose cwritev has returned
+
+  private int rounds = 200;
+  private int reader = -1;                      // which reader this thread is, or -1 for the writer
+
+  public WritevRace( ) {
+  }
+
+  public WritevRace( String[] args ) {
+    if ( args.length > 0 )
+      rounds = Integer.parseInt( args[0] );
+    if ( args.length > 1 )
+      reader = Integer.parseInt( args[1] );
+  }
+
+  public void run( ) {
+    if ( reader >= 0 )
+      read( );
+    else
+      write( );
+    SysLib.exit( );
+  }
+
+  // Block i of the set the writer rewrites
+  private int block( int i ) {
+    return SysLib.diskBlocks( ) - 1 - i;
+  }
+
+  // Where reader r leaves its result: 0 if every read checked out, else the number of bad reads
+  private int reportBlock( int r ) {
+    return SysLib.diskBlocks( ) - 1 - BLOCKS - FILLERS - r;
+  }
+
+  private void write( ) {
+    int[] blockIds = new int[BLOCKS];
+    for ( int i = 0; i < BLOCKS; i++ )
+      blockIds[i] = block( i );
+    byte[] span = new byte[BLOCKS * 512];
+    SysLib.cwritev( blockIds, span );
+    written = 0;
+
+    for ( int r = 0; r < READERS; r++ )
+      SysLib.exec( new String[]{ "WritevRace", "" + rounds, "" + r } );
+
+    int failed = 0;
+    int stale = 0;
+    byte[] data = new byte[512];
+    for ( int round = 1; round <= rounds; round++ ) {
+      java.util.Arrays.fill( span, ( byte )round );
+      if ( SysLib.cwritev( blockIds, span ) != Kernel.OK )
+        failed++;
+      written = round;
+      for ( int i = 0; i < BLOCKS; i++ ) {
+        SysLib.cread( block( i ), data );
+        if ( round( data ) != round )
+          stale++;
+      }
+    }
+    for ( int r = 0; r < READERS; r++ )
+      SysLib.join( );
+
+    String problem = ( failed > 0 ) ? failed + " writevs failed" : null;
+    if ( problem == null && stale > 0 )
+      problem = stale + " blocks read back stale right after their cwritev";
+    for ( int r = 0; problem == null && r < READERS; r++ ) {
+      SysLib.cread( reportBlock( r ), data );
+      if ( SysLib.bytes2int( data, 0 ) != 0 )
+        problem = "reader " + r + " saw " + SysLib.bytes2int( data, 0 ) + " stale or torn blocks";
+    }
+    for ( int i = 0; problem == null && i < BLOCKS; i++ ) {
+      SysLib.cread( block( i ), data );
+      if ( round( data ) != rounds )
+        problem = "block " + block( i ) + " reads as round " + round( data ) + " after round " + rounds;
+    }
+
+    if ( problem == null )
+      SysLib.cout( "WritevRace: " + rounds + " rounds, every read current...Correct\n" );
+    else
+      SysLib.cout( "WritevRace: " + problem + "...wrong\n" );
+  }
+
+  private void read( ) {
+    int bad = 0;
+    byte[] data = new byte[512];
+    for ( int n = 0; n < rounds * 4; n++ ) {
+      int i = ( n + reader ) % BLOCKS;
+      int floor = written;
+      SysLib.cread( block( i ), data );
+      if ( round( data ) < floor )
+        bad++;
+      SysLib.cread( block( BLOCKS + ( n + reader * 3 ) % FILLERS ), data );
+    }
+    java.util.Arrays.fill( data, ( byte )0 );
+    SysLib.int2bytes( bad, data, 0 );
+    SysLib.cwrite( reportBlock( reader ), data );
+  }
+
+  // The round a block was written in, or -1 if its bytes are not all from the same round
+  private int round( byte[] data ) {
+    for ( int i = 1; i < 512; i++ )
+      if ( data[i] != data[0] )
+        return -1;
+    return data[0] & 0xFF;
+  }
+}